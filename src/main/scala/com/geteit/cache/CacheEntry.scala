@@ -2,7 +2,7 @@ package com.geteit.cache
 
 import java.io._
 
-import com.geteit.util.IoUtils
+import com.geteit.util.{IoUtils, returning}
 import com.geteit.util.Log._
 import com.geteit.inject.{Injectable, Injector}
 
@@ -17,20 +17,40 @@ class CacheEntry(val data: CacheEntryData)(implicit inj: Injector) extends Injec
 
   def get: Either[File, Array[Byte]] = content.fold(Left(file): Either[File, Array[Byte]])(Right(_))
 
-  def getData: Array[Byte] = content.getOrElse(IoUtils.toByteArray(new FileInputStream(file)))
+  def getData: Array[Byte] = content.getOrElse(IoUtils.toByteArray(openFile()))
 
-  def inputStream = content.fold[InputStream](new FileInputStream(file))(new ByteArrayInputStream(_))
+  /**
+   * Returns read-only view of entry data without copying it to heap, file content is memory mapped.
+   * Returned region has to be released after use.
+   */
+  def map(): MappedRegion = content.fold(readingFile(service.mappedBuffers.acquire(file)))(MappedRegion(_))
+
+  def inputStream = content.fold[InputStream](openFile())(new ByteArrayInputStream(_))
 
   def outputStream = {
     file.getParentFile.mkdirs()
-    new FileOutputStream(file)
+    service.mappedBuffers.invalidate(file)
+    returning(new FileOutputStream(file)) { _ => service.filePresence.added(data.fileId) }
   }
 
+  private def openFile() = readingFile(new FileInputStream(file))
+
+  private def readingFile[A](body: => A): A =
+    try body
+    catch {
+      case e: FileNotFoundException =>
+        warn(s"entry file missing for: ${data.key}", e)
+        service.fileMissing(this)
+        throw e
+    }
+
   def copyDataToFile() = {
     file.getParentFile.mkdirs()
 
     data.data foreach { data =>
+      service.mappedBuffers.invalidate(file)
       IoUtils.copy(new ByteArrayInputStream(data), new FileOutputStream(file))
+      service.filePresence.added(this.data.fileId)
     }
     file
   }
@@ -1,12 +1,13 @@
 package com.geteit.cache
 
+import java.io.{DataInputStream, DataOutputStream}
 import java.lang.System.currentTimeMillis
 import java.util.UUID
 
+import android.database.Cursor
 import android.database.sqlite.{SQLiteProgram, SQLiteDatabase}
-import com.geteit.db.{Index, Dao, DbType, Id}
+import com.geteit.db._
 import com.geteit.json.{Json, JsonValue}
-import com.geteit.util.Log
 
 @JsonValue
 case class Uid(str: String) {
@@ -26,7 +27,9 @@ object Uid {
 
   implicit object UidDbType extends DbType[Uid] with DbType.Text {
     override def literal(v: Uid): String = s"'${v.str}'"
+    override def arg(v: Uid): String = v.str
     def bind(stmt: SQLiteProgram, pos: Int, v: Uid) = stmt.bindString(pos, v.str)
+    def read(c: Cursor, index: Int) = Uid(c.getString(index))
   }
 }
 
@@ -38,27 +41,79 @@ case class CacheEntryData(
     timeout: Long = CacheService.DefaultExpiryTime.toMillis,
     fileId: Uid = Uid()) {
 
+  // compares data arrays in place, without copying them
   override def equals(obj: scala.Any): Boolean = obj match {
-    case CacheEntryData(k, d, lu, t, i) =>
-      Log.warn("Comparing CacheEntryData with equals - can be slow", new IllegalStateException(""))("CacheEntryData")
-      k == key && lu == lastUsed && t == timeout && i == fileId && d.map(_.toSeq) == data.map(_.toSeq)
+    case e: CacheEntryData =>
+      (e eq this) || e.key == key && e.lastUsed == lastUsed && e.timeout == timeout && e.fileId == fileId &&
+        (if (data.isEmpty) e.data.isEmpty else e.data.isDefined && java.util.Arrays.equals(data.get, e.data.get))
     case _ => false
   }
+
+  override def hashCode(): Int = key.hashCode * 31 + data.fold(0)(java.util.Arrays.hashCode)
 }
 
 object CacheEntryData {
 
+  object CacheEntryCodec extends BinaryRowCodec[CacheEntryData](1) {
+    import BinaryRowCodec._
+
+    override protected def write(e: CacheEntryData, out: DataOutputStream): Unit = {
+      writeString(out, e.key)
+      writeOption(out, e.data)(writeBytes(out, _))
+      out.writeLong(e.lastUsed)
+      out.writeLong(e.timeout)
+      writeString(out, e.fileId.str)
+    }
+
+    override protected def read(in: DataInputStream): CacheEntryData =
+      CacheEntryData(readString(in), readOption(in)(readBytes(in)), in.readLong(), in.readLong(), Uid(readString(in)))
+  }
+
   implicit object CacheEntryDao extends Dao[String, CacheEntryData] {
 
     val ExpiresIndex = new Index[CacheEntryData, Long]("expires", { e => e.lastUsed + e.timeout })
+    val FileIdIndex = new Index[CacheEntryData, Uid]("fileId", _.fileId)
 
     override def getId(v: CacheEntryData): String = v.key
-    override val table = new Table("CacheEntry", Seq(ExpiresIndex))
+    override lazy val codec: RowCodec[CacheEntryData] = CacheEntryCodec // inline data is much smaller than in json
+    override val table = new Table("CacheEntry", Seq(ExpiresIndex, FileIdIndex))
+
+    /**
+     * Adds fileId column to CacheEntry table created by previous versions.
+     * Required, apps upgrading from db without this column have to include it in their migrations.
+     */
+    def addFileIdIndex(from: Int, to: Int) = addIndexes(from, to)
 
     def findAllExpired(currentTime: Long)(implicit db: SQLiteDatabase): Seq[CacheEntryData] =
-      list(query(s"${ExpiresIndex.name} < $currentTime"))
+      list(query(s"${ExpiresIndex.name} < ?", Seq(currentTime.toString)))
 
     def deleteExpired(currentTime: Long)(implicit db: SQLiteDatabase): Unit =
-      db.delete(table.name, s"${ExpiresIndex.name} < $currentTime", null)
+      db.delete(table.name, s"${ExpiresIndex.name} < ?", Array(currentTime.toString))
+
+    def findExpired(currentTime: Long, after: Option[(Long, String)], limit: Int)(implicit db: SQLiteDatabase): Seq[CacheEntryData] = {
+      val expires = ExpiresIndex.name
+      val (where, args) = after match {
+        case Some((exp, key)) => (s"$expires < ? AND ($expires > ? OR ($expires = ? AND _id > ?))", Array(currentTime.toString, exp.toString, exp.toString, key))
+        case None => (s"$expires < ?", Array(currentTime.toString))
+      }
+      list(db.query(table.name, null, where, args, null, null, s"$expires, _id", limit.toString))
+    }
+
+    def findReferencedFiles(ids: Seq[Uid])(implicit db: SQLiteDatabase): Set[Uid] =
+      ids.grouped(Dao.MaxBindArgs).flatMap { group =>
+        project(FileIdIndex, Matcher.in(FileIdIndex)(group.toSet)).map(_._2)
+      } .toSet
+
+    /**
+     * Returns files referenced by more than one entry, with number of referencing entries.
+     */
+    def findSharedFiles()(implicit db: SQLiteDatabase): Seq[(Uid, Int)] = {
+      val c = db.rawQuery(s"SELECT ${FileIdIndex.name}, COUNT(*) FROM ${table.name} WHERE ${FileIdIndex.name} IS NOT NULL GROUP BY ${FileIdIndex.name} HAVING COUNT(*) > 1", null)
+      try {
+        val builder = Seq.newBuilder[(Uid, Int)]
+        while (c.moveToNext()) builder += (Uid(c.getString(0)) -> c.getInt(1))
+        builder.result()
+      } finally c.close()
+    }
   }
 }
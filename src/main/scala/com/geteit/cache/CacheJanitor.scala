@@ -0,0 +1,130 @@
+package com.geteit.cache
+
+import java.io.File
+import java.lang.System.currentTimeMillis
+
+import android.annotation.TargetApi
+import android.app.ActivityManager
+import android.app.ActivityManager.RunningAppProcessInfo
+import android.os.Build
+import com.geteit.concurrent.Threading
+import com.geteit.util.GtObjHandler
+import com.geteit.util.Log._
+
+import scala.concurrent.duration._
+import scala.concurrent.{Future, Promise}
+import scala.util.{Failure, Success, Try}
+
+/**
+ * Incrementally removes expired cache entries and files which are not referenced by any entry.
+ * Work is split in small batches scheduled one after another,
+ * pass started with `deferInForeground` backs off while app is in foreground.
+ */
+class CacheJanitor(storage: CacheStorage) {
+  import CacheJanitor._
+  import Threading.global
+
+  private val handler = new GtObjHandler[Step]({ step => run(step) })
+
+  // accessed on main thread only
+  private var pass = Option.empty[Promise[Unit]]
+  private var deferred = false
+
+  /**
+   * Starts cleanup pass, unless one is already running.
+   * @param deferInForeground - postpone batches while app is in foreground, returned future may then take arbitrarily long,
+   *                          starting pass without deferring also stops deferring currently running one
+   * @return future completed once whole cache is processed
+   */
+  def start(deferInForeground: Boolean = false): Future[Unit] = {
+    val p = Promise[Unit]()
+    handler {
+      pass match {
+        case Some(current) =>
+          if (!deferInForeground) deferred = false
+          p.completeWith(current.future)
+        case None =>
+          verbose("starting cleanup pass")
+          pass = Some(p)
+          deferred = deferInForeground
+          schedule(Expired(None))
+      }
+    }
+    p.future
+  }
+
+  private def backOff = deferred && inForeground
+
+  private def schedule(step: Step) = handler.send(step, (if (backOff) ForegroundDelay else StepDelay).toMillis)
+
+  private def run(step: Step): Unit =
+    if (backOff) schedule(step)
+    else process(step) onComplete {
+      case Success(Some(next)) => handler.send(next, StepDelay.toMillis)
+      case Success(None) =>
+        verbose("cleanup pass completed")
+        handler { finish(Success(())) }
+      case Failure(e) =>
+        error(s"cleanup step: $step failed", e)
+        handler { finish(Failure(e)) }
+    }
+
+  private def finish(res: Try[Unit]) = {
+    pass foreach { _.tryComplete(res) }
+    pass = None
+  }
+
+  private def process(step: Step): Future[Option[Step]] = step match {
+    case Expired(cursor) =>
+      storage.removeExpired(cursor, BatchSize) map {
+        case Some(next) => Some(Expired(Some(next)))
+        case None => Some(ScanDirs)
+      }
+    case ScanDirs =>
+      Future { Option(storage.cacheDir.listFiles()).fold(List.empty[File])(_.filter(_.isDirectory).toList) } map {
+        case dir :: dirs => Some(Orphans(dir, dirs))
+        case Nil => None
+      }
+    case Orphans(dir, dirs) =>
+      deleteOrphans(dir) map { _ =>
+        dirs match {
+          case next :: rest => Some(Orphans(next, rest))
+          case Nil => None
+        }
+      }
+  }
+
+  // directory is scanned on background thread, steps are only scheduled on main looper
+  private def deleteOrphans(dir: File): Future[Unit] = Future {
+    val minModified = currentTimeMillis() - OrphanGracePeriod.toMillis // skip recent files, their entries may not be saved yet
+    val files = Option(dir.listFiles()).fold(Seq.empty[File])(_.toSeq).filter(_.isFile)
+    files foreach { f => storage.filePresence.added(Uid(f.getName)) }
+    files.filter(_.lastModified() < minModified).map(f => Uid(f.getName))
+  } flatMap { candidates =>
+    if (candidates.isEmpty) Future.successful(())
+    else storage.deleteUnreferenced(candidates) map { orphans =>
+      if (orphans.nonEmpty) verbose(s"deleted ${orphans.size} orphaned files from $dir")
+    }
+  }
+
+  @TargetApi(16)
+  private def inForeground = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && {
+    val info = new RunningAppProcessInfo
+    ActivityManager.getMyMemoryState(info)
+    info.importance <= RunningAppProcessInfo.IMPORTANCE_VISIBLE
+  }
+}
+
+object CacheJanitor {
+  private implicit val logTag: LogTag = "CacheJanitor"
+
+  val BatchSize = 64
+  val StepDelay = 250.millis
+  val ForegroundDelay = 30.seconds
+  val OrphanGracePeriod = 1.hour
+
+  sealed trait Step
+  case class Expired(cursor: Option[(Long, String)]) extends Step
+  case object ScanDirs extends Step
+  case class Orphans(dir: File, remaining: List[File]) extends Step
+}
@@ -1,13 +1,17 @@
 package com.geteit.cache
 
 import java.io._
+import java.security.{DigestInputStream, MessageDigest}
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
 
-import com.geteit.util.IoUtils
+import com.geteit.util.{IoUtils, returning}
 import com.geteit.util.Log._
 import com.geteit.inject.{Injectable, Injector}
 
-import scala.concurrent.Future
+import scala.concurrent.{Future, Promise}
 import scala.concurrent.duration._
+import scala.util.control.NonFatal
 
 
 case class Expiration(timeout: Long)
@@ -18,12 +22,21 @@ object Expiration {
   implicit def in(d: Duration) : Expiration = if (d.isFinite()) Expiration(d.toMillis) else Expiration(100L * 3600L * 24L * 365L * 1000L) // 100 years (don't use Long.MaxValue due to overflow dangers)
 }
 
-class CacheService(implicit inj: Injector) extends Injectable {
+/**
+ * @param dedupe - enables content addressing of cache files, entries with identical content will share single file
+ */
+class CacheService(val dedupe: Boolean = false)(implicit inj: Injector) extends Injectable {
   import CacheService._
   import com.geteit.concurrent.Threading.global
 
   val storage = inject[CacheStorage]
 
+  storage.scheduleCleanup()
+
+  // producers currently running per key, separate maps so that `getOrElse` default can call `addStream` for the same key
+  private val loading = new ConcurrentHashMap[String, Future[CacheEntry]]
+  private val writing = new ConcurrentHashMap[String, Future[CacheEntry]]
+
   def createForFile(key: String = Uid().str)(implicit timeout: Expiration = CacheService.DefaultExpiryTime): CacheEntry = add(CacheEntryData(key))
 
   def add(key: String, data: Array[Byte])(implicit timeout: Expiration = CacheService.DefaultExpiryTime): Future[CacheEntry] =
@@ -33,37 +46,36 @@ class CacheService(implicit inj: Injector) extends Injectable {
   def addData(key: String, data: Array[Byte])(implicit timeout: Expiration = CacheService.DefaultExpiryTime): CacheEntry =
     add(CacheEntryData(key, Option(data), timeout = timeout.timeout))
 
-  def addStream(key: String, in: => InputStream)(implicit timeout: Expiration = CacheService.DefaultExpiryTime): Future[CacheEntry] = Future {
+  def addStream(key: String, in: => InputStream)(implicit timeout: Expiration = CacheService.DefaultExpiryTime): Future[CacheEntry] = singleFlight(writing, key)(Future {
     val data = CacheEntryData(key, timeout = timeout.timeout)
-    val file = entryFile(data.fileId)
     try {
-      file.getParentFile.mkdirs()
-      IoUtils.copy(in, new FileOutputStream(file))
-      add(data)
+      add(writeContent(data, in), claimed = dedupe)
     } catch {
       case e: IOException =>
         error(s"addStream($key) failed, will return expired cache entry", e)
         add(data.copy(lastUsed = 0L)) // already expired
     }
-  }
+  })
 
-  def addFile(key: String, src: File, moveFile: Boolean = false)(implicit timeout: Expiration = CacheService.DefaultExpiryTime): Future[CacheEntry] = Future {
+  def addFile(key: String, src: File, moveFile: Boolean = false)(implicit timeout: Expiration = CacheService.DefaultExpiryTime): Future[CacheEntry] = singleFlight(writing, key, if (moveFile) src.delete())(Future {
     val data = CacheEntryData(key, timeout = timeout.timeout)
-    val file = entryFile(data.fileId)
     try {
-      file.getParentFile.mkdirs()
-      IoUtils.copy(new FileInputStream(src), new FileOutputStream(file))
+      val written = writeContent(data, new FileInputStream(src))
       if (moveFile) src.delete()
-      add(data)
+      add(written, claimed = dedupe)
     } catch {
       case e: IOException =>
         error(s"addFile($key) failed, will return expired cache entry", e)
         add(data.copy(lastUsed = 0L)) // already expired
     }
-  }
+  })
 
   def move(key: String, entry: CacheEntry)(implicit timeout: Expiration = CacheService.DefaultExpiryTime) = {
     (entry.get match {
+      case Left(_) if dedupe => // file is reference counted, no need to move it
+        val fileId = entry.data.fileId
+        storage.fileClaims.claim(fileId)(())
+        Future.successful(add(CacheEntryData(key, timeout = timeout.timeout, fileId = fileId), claimed = true))
       case Left(file) => addFile(key, file, moveFile = true)
       case Right(data) => Future.successful(addData(key, data))
     }) map { current =>
@@ -72,8 +84,43 @@ class CacheService(implicit inj: Injector) extends Injectable {
     }
   }
 
-  private def add(entry: CacheEntryData) = {
-    storage.add(entry)
+  /**
+   * Writes content to entry file, with dedupe enabled returns entry pointing to existing file with the same content if there is one.
+   * Shared file is claimed (so cleanup doesn't delete it), claim is released by `add` once entry is saved.
+   */
+  private def writeContent(data: CacheEntryData, in: InputStream): CacheEntryData = {
+    val file = entryFile(data.fileId)
+    file.getParentFile.mkdirs()
+    returning(if (!dedupe) {
+      IoUtils.copy(in, new FileOutputStream(file))
+      data
+    } else {
+      val digest = MessageDigest.getInstance("SHA-1")
+      IoUtils.copy(new DigestInputStream(in, digest), new FileOutputStream(file))
+      val shared = data.copy(fileId = contentId(digest.digest()))
+      val target = entryFile(shared.fileId)
+      storage.fileClaims.claim(shared.fileId) {
+        try {
+          if (target.exists()) {
+            verbose(s"content of ${data.key} already cached in ${shared.fileId}, saved ${file.length()} bytes")
+            file.delete()
+          } else {
+            target.getParentFile.mkdirs()
+            if (!file.renameTo(target)) throw new IOException(s"Could not move $file to $target")
+          }
+        } catch {
+          case e: IOException =>
+            storage.fileClaims.release(shared.fileId)
+            throw e
+        }
+      }
+      shared
+    }) { written => filePresence.added(written.fileId) }
+  }
+
+  private def add(entry: CacheEntryData, claimed: Boolean = false) = {
+    val saved = storage.add(entry)
+    if (claimed) saved onComplete { _ => storage.fileClaims.release(entry.fileId) }
     new CacheEntry(entry)
   }
 
@@ -82,9 +129,37 @@ class CacheService(implicit inj: Injector) extends Injectable {
     case None => None
   }
 
+  /**
+   * Returns cached entry or uses `default` to produce it.
+   * Concurrent callers asking for the same missing key will wait for the first producer instead of running their own.
+   */
   def getOrElse(key: String, default: => Future[CacheEntry]) = getEntry(key) flatMap {
     case Some(entry) => Future.successful(entry)
-    case _ => default
+    case _ =>
+      singleFlight(loading, key) {
+        getEntry(key) flatMap { // previous producer could finish just before this one was registered
+          case Some(entry) => Future.successful(entry)
+          case _ => default
+        }
+      }
+  }
+
+  /**
+   * Runs `producer` unless there is one already running for given key, in which case its result is returned.
+   * @param joined - executed when caller joins already running producer
+   */
+  private def singleFlight(flights: ConcurrentHashMap[String, Future[CacheEntry]], key: String, joined: => Unit = ())(producer: => Future[CacheEntry]): Future[CacheEntry] = {
+    val p = Promise[CacheEntry]()
+    flights.putIfAbsent(key, p.future) match {
+      case null =>
+        p.completeWith(try producer catch { case NonFatal(e) => Future.failed(e) })
+        p.future onComplete { _ => flights.remove(key, p.future) }
+        p.future
+      case current =>
+        verbose(s"joining producer already running for: $key")
+        joined
+        current
+    }
   }
 
   def remove(key: String): Unit = storage.remove(key)
@@ -92,10 +167,21 @@ class CacheService(implicit inj: Injector) extends Injectable {
   def remove(entry: CacheEntry): Unit = storage.remove(entry.data)
 
   private[cache] def entryFile(fileId: Uid) = storage.entryFile(fileId)
+
+  private[cache] def mappedBuffers = storage.mappedBuffers
+
+  private[cache] def filePresence = storage.filePresence
+
+  private[cache] def fileMissing(entry: CacheEntry): Unit = {
+    filePresence.removed(entry.data.fileId)
+    remove(entry)
+  }
 }
 
 object CacheService {
   private implicit val logTag: LogTag = "CacheService"
   val DefaultExpiryTime = 7.days
   val MaxDbDataSize = 4 * 1024
+
+  def contentId(digest: Array[Byte]) = Uid(UUID.nameUUIDFromBytes(digest).toString)
 }
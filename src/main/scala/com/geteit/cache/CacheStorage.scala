@@ -5,13 +5,13 @@ import java.lang.System._
 
 import android.content.Context
 import com.geteit.cache.CacheEntryData.CacheEntryDao
-import com.geteit.concurrent.Threading
 import com.geteit.db.CachedStorage
 import com.geteit.events.EventContext
 import com.geteit.inject.{Injectable, Injector}
 import com.geteit.util.Log._
 import com.geteit.util._
 
+import scala.collection.JavaConverters._
 import scala.concurrent.Future
 
 class CacheStorage(implicit inj: Injector) extends CachedStorage[String, CacheEntryData] with Injectable {
@@ -25,9 +25,14 @@ class CacheStorage(implicit inj: Injector) extends CachedStorage[String, CacheEn
       value.flatMap(_.data).fold(0)(_.length) + key.length + 128 // data plus some object overhead
   }
 
-  val fileCleanupQueue = new SerialProcessingQueue[Uid]({ entries =>
-    Future { entries foreach { entryFile(_).delete() } }(Threading.global)
-  }, "CacheFileCleanupQueue")
+  val mappedBuffers = new MappedBufferPool
+
+  val filePresence = new FilePresence(entryFile)
+
+  val fileClaims = new FileClaims
+
+  // files can be shared by multiple entries (see CacheService.dedupe), only unreferenced ones are deleted
+  val fileCleanupQueue = new SerialProcessingQueue[Uid]({ ids => deleteUnreferenced(ids) }, "CacheFileCleanupQueue")
 
   private def filterValid(entry: Option[CacheEntryData]) = entry match {
     case Some(e) if expired(e) || dataMissing(e) =>
@@ -44,29 +49,75 @@ class CacheStorage(implicit inj: Injector) extends CachedStorage[String, CacheEn
   
   def updateExpires(key: String) = update(key, _.copy(lastUsed = System.currentTimeMillis()))
 
-  def remove(entry: CacheEntryData): Unit = {
-    fileCleanupQueue ! entry.fileId
-    super.remove(entry.key)
+  def remove(entry: CacheEntryData): Unit =
+    super.remove(entry.key) onComplete { _ => fileCleanupQueue ! entry.fileId } // reference check has to see this entry removed
+
+  /**
+   * Deletes files not referenced by any entry, files claimed by entries added in the meantime are kept.
+   * @return ids of deleted files
+   */
+  private[cache] def deleteUnreferenced(ids: Seq[Uid]): Future[Seq[Uid]] = {
+    val since = fileClaims.begin()
+    unreferenced(ids.distinct) map { fileClaims.deleteUnclaimed(_, since)(deleteFile) } andThen { case _ => fileClaims.end(since) }
   }
 
-  private def expired(entry: CacheEntryData) = entry.lastUsed + entry.timeout <= System.currentTimeMillis()
+  private def deleteFile(id: Uid): Unit = {
+    val file = entryFile(id)
+    filePresence.removed(id)
+    mappedBuffers.invalidate(file)
+    file.delete()
+  }
 
-  private def dataMissing(entry: CacheEntryData) = entry.data.isEmpty && !entryFile(entry.fileId).exists()
-
-  def deleteExpired(): Future[Unit] = {
-    val currentTime = currentTimeMillis()
-    storage { implicit db =>
-      val entries = CacheEntryDao.findAllExpired(currentTime)
-      CacheEntryDao.deleteExpired(currentTime)
-      entries
-    }.map { entries =>
-      entries foreach remove
-    }.flatMap { _ =>
-      fileCleanupQueue.post(Future.successful(()))
+  private[cache] def unreferenced(ids: Seq[Uid]): Future[Seq[Uid]] = {
+    val cached = cache.snapshot.asScala.valuesIterator.flatMap(_.map(_.fileId)).toSet // cache may contain entries not yet saved to db
+    storage.read { CacheEntryDao.findReferencedFiles(ids)(_) } map { referenced =>
+      ids.filterNot(id => cached(id) || referenced(id))
     }
   }
+
+  def dedupeReport(): Future[DedupeReport] = storage.read { CacheEntryDao.findSharedFiles()(_) } map { shared =>
+    DedupeReport(shared.size, shared.map(_._2 - 1).sum, shared.map { case (id, count) => (count - 1) * entryFile(id).length() }.sum)
+  }
+
+  private def expired(entry: CacheEntryData) = entry.lastUsed + entry.timeout <= System.currentTimeMillis()
+
+  private def dataMissing(entry: CacheEntryData) = entry.data.isEmpty && !filePresence(entry.fileId)
+
+  lazy val janitor = new CacheJanitor(this)
+
+  /**
+   * Starts background cleanup of expired entries and orphaned files, which is paused while app is in foreground.
+   * Called when CacheService is created, returned future may take arbitrarily long to complete.
+   */
+  def scheduleCleanup(): Future[Unit] = janitor.start(deferInForeground = true)
+
+  /**
+   * Incrementally removes expired entries and orphaned files without pausing in foreground, for callers waiting for completion.
+   * @return future completed once cleanup is finished
+   */
+  def deleteExpired(): Future[Unit] = janitor.start()
+
+  /**
+   * Removes single batch of expired entries, starting after given (expires, key) cursor.
+   * @return cursor for next batch, None if there are no more expired entries
+   */
+  private[cache] def removeExpired(cursor: Option[(Long, String)], limit: Int): Future[Option[(Long, String)]] =
+    storage.read { CacheEntryDao.findExpired(currentTimeMillis(), cursor, limit)(_) } flatMap { entries =>
+      val removed = entries filter { e => Option(cache.get(e.key)).flatten.forall(expired) } // cached entry could be touched but not saved yet
+      (if (removed.isEmpty) Future.successful(()) else removeAll(removed.map(_.key))) map { _ =>
+        removed foreach { e => fileCleanupQueue ! e.fileId }
+        if (entries.size < limit) None else entries.lastOption.map(e => (CacheEntryDao.ExpiresIndex(e), e.key))
+      }
+    }
 }
 
+/**
+ * @param sharedFiles - number of files referenced by more than one cache entry
+ * @param sharedReferences - number of entries which didn't need their own file
+ * @param bytesSaved - disk space saved by sharing files
+ */
+case class DedupeReport(sharedFiles: Int, sharedReferences: Int, bytesSaved: Long)
+
 object CacheStorage {
   def cacheDir(context: Context) = returning(new File(Option(context.getExternalCacheDir).getOrElse(context.getCacheDir), "cache_entries")) { dir => dir.mkdirs() }
   
@@ -0,0 +1,54 @@
+package com.geteit.cache
+
+import com.geteit.util.returning
+
+import scala.collection.mutable
+
+/**
+ * Tracks shared cache files claimed by entries which are being added (see CacheService.dedupe).
+ * File cleanup checks references asynchronously, so file claimed after that check started must not be deleted,
+ * claims are released once claiming entry is saved in db (and visible for following reference checks).
+ */
+class FileClaims {
+  // all state is guarded by this lock
+  private var counter = 0L
+  private val active = new mutable.HashMap[Uid, Int]
+  private val lastChange = new mutable.HashMap[Uid, Long]
+  private val inFlight = new mutable.ArrayBuffer[Long]
+
+  def claim[A](id: Uid)(body: => A): A = synchronized {
+    active(id) = active.getOrElse(id, 0) + 1
+    touch(id)
+    body
+  }
+
+  def release(id: Uid): Unit = synchronized {
+    active.get(id) foreach { n => if (n <= 1) active.remove(id) else active(id) = n - 1 }
+    touch(id)
+  }
+
+  private def touch(id: Uid) = {
+    counter += 1
+    lastChange(id) = counter
+  }
+
+  /**
+   * Starts cleanup, has to be called before reference check, and matched with `end`.
+   * @return stamp for `deleteUnclaimed`
+   */
+  def begin(): Long = synchronized { returning(counter) { inFlight += _ } }
+
+  def end(since: Long): Unit = synchronized {
+    inFlight -= since
+    val threshold = if (inFlight.isEmpty) counter else inFlight.min // changes older than every running cleanup are no longer needed
+    lastChange.retain { case (id, stamp) => stamp > threshold || active.contains(id) }
+  }
+
+  /**
+   * Deletes files not claimed since given stamp, executed under claims lock, so no file can be claimed while it's deleted.
+   * @return ids of deleted files
+   */
+  def deleteUnclaimed(ids: Seq[Uid], since: Long)(delete: Uid => Unit): Seq[Uid] = synchronized {
+    returning(ids filterNot { id => active.contains(id) || lastChange.get(id).exists(_ > since) }) { _ foreach delete }
+  }
+}
@@ -0,0 +1,21 @@
+package com.geteit.cache
+
+import java.io.File
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * In-memory record of cache files known to exist, lets cache lookups skip File.exists() calls.
+ * Disk is only checked for files not (yet) recorded as present.
+ */
+class FilePresence(file: Uid => File) {
+  private val present = Collections.newSetFromMap(new ConcurrentHashMap[Uid, java.lang.Boolean])
+
+  def apply(id: Uid): Boolean = present.contains(id) || (file(id).exists() && { present.add(id); true })
+
+  def added(id: Uid): Unit = present.add(id)
+
+  def removed(id: Uid): Unit = present.remove(id)
+
+  def size = present.size()
+}
@@ -0,0 +1,71 @@
+package com.geteit.cache
+
+import java.io.{Closeable, File, RandomAccessFile}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel.MapMode
+import java.util.concurrent.atomic.AtomicBoolean
+
+import com.geteit.util.IoUtils
+import com.geteit.util.Log._
+
+import scala.collection.mutable
+
+/**
+ * Read-only view of cache entry data.
+ * Has to be released when no longer used, buffer should not be accessed after that.
+ */
+class MappedRegion private[cache] (val buffer: ByteBuffer, onRelease: () => Unit) extends Closeable {
+  private val released = new AtomicBoolean(false)
+
+  def release(): Unit = if (released.compareAndSet(false, true)) onRelease()
+
+  override def close(): Unit = release()
+}
+
+object MappedRegion {
+  def apply(data: Array[Byte]): MappedRegion = new MappedRegion(ByteBuffer.wrap(data).asReadOnlyBuffer(), () => ())
+}
+
+/**
+ * Keeps memory mapped cache files shared between concurrent readers.
+ * Mapping is dropped once last region acquired for given file is released, or when file is invalidated.
+ */
+class MappedBufferPool {
+  import MappedBufferPool._
+
+  private class Mapping(val buffer: ByteBuffer) {
+    var refs = 0
+  }
+
+  private val mappings = new mutable.HashMap[File, Mapping]
+
+  def acquire(file: File): MappedRegion = synchronized {
+    val mapping = mappings.getOrElseUpdate(file, new Mapping(map(file)))
+    mapping.refs += 1
+    new MappedRegion(mapping.buffer.asReadOnlyBuffer(), () => release(file, mapping))
+  }
+
+  /**
+   * Removes mapping for given file from pool, should be called when file is deleted or replaced.
+   * Already acquired regions remain valid.
+   */
+  def invalidate(file: File): Unit = synchronized { mappings.remove(file) }
+
+  def size = synchronized { mappings.size }
+
+  private def release(file: File, mapping: Mapping): Unit = synchronized {
+    mapping.refs -= 1
+    if (mapping.refs <= 0 && mappings.get(file).contains(mapping)) mappings.remove(file)
+  }
+
+  private def map(file: File): ByteBuffer = {
+    verbose(s"map($file)")
+    IoUtils.withResource(new RandomAccessFile(file, "r")) { raf =>
+      raf.getChannel.map(MapMode.READ_ONLY, 0, raf.length())
+    }
+  }
+}
+
+object MappedBufferPool {
+  private implicit val logTag: LogTag = "MappedBufferPool"
+}
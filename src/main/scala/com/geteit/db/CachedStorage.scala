@@ -1,19 +1,19 @@
 package com.geteit.db
 
-import android.database.sqlite.SQLiteDatabase
 import android.database.{Cursor, CursorWrapper}
+import android.database.sqlite.SQLiteDatabase
 import android.support.v4.util.LruCache
 import com.geteit.concurrent.{LimitedExecutionContext, Threading}
-import com.geteit.db.CachedStorageSignal.{Add, Cmd, Del}
+import com.geteit.db.CachedStorageSignal.{Add, Cmd, Del, FrameDelay, Reset}
 import com.geteit.events._
 import com.geteit.inject.{Injectable, Injector}
 import com.geteit.util.Log._
 import com.geteit.util.returning
 
 import scala.collection.JavaConverters._
-import scala.collection.breakOut
-import scala.concurrent.Future
-import scala.util.Try
+import scala.collection.{breakOut, mutable}
+import scala.concurrent.duration._
+import scala.concurrent.{Future, Promise}
 
 abstract class CachedStorage[K, V](implicit val dao: Dao[K, V], inj: Injector) extends Injectable {
   private implicit val tag: LogTag = "CachedStorage"
@@ -26,59 +26,245 @@ abstract class CachedStorage[K, V](implicit val dao: Dao[K, V], inj: Injector) e
   val onAdded = EventStream[Seq[V]]()
   val onRemoved = EventStream[Seq[K]]()
   val onUpdated = EventStream[Seq[(V, V)]]() // (prev, current)
+  val onReset = EventStream[Unit]() // any item could have changed (after bulk import), signals reload their data
+
+  // changes routed by key, used by per-key signals instead of filtering whole event streams
+  private[db] lazy val keyedChanges = new KeyedDispatcher[K, Cmd[K, V]]
+
+  private def notifyAdded(vs: Seq[V]): Unit = {
+    onAdded ! vs
+    keyedChanges.dispatch(vs.map(v => dao.getId(v) -> Add(v)))
+  }
+
+  private def notifyUpdated(vs: Seq[(V, V)]): Unit = {
+    onUpdated ! vs
+    keyedChanges.dispatch(vs.map { case (_, v) => dao.getId(v) -> Add(v) })
+  }
+
+  private def notifyRemoved(keys: Seq[K]): Unit = {
+    onRemoved ! keys
+    keyedChanges.dispatch(keys.map(k => k -> Del(k)))
+  }
+
+  /**
+   * Enables write-behind mode: cache is updated immediately, while db writes are coalesced per key
+   * and saved in single transaction after given delay. Use `flush()` to make sure changes are persisted.
+   * Futures returned by writes (`add`, `update`, `remove`, ...) complete only once that transaction is committed,
+   * so they can take up to the whole delay, unless `flush()` is called earlier.
+   */
+  protected def writeBehind: Option[FiniteDuration] = None
+
+  private lazy val writeQueue = writeBehind map { new WriteBehindQueue[K, V](storage, dao, _) }
 
-  private var loadFuture = Future.successful(Option.empty[V])
+  // keys currently loaded from db and keys waiting for next batch, only accessed on `executionContext` (runs one task at a time)
+  private val loading = new mutable.HashMap[K, Future[Option[V]]]
+  private val pendingLoads = new mutable.HashMap[K, Promise[Option[V]]]
 
   private def cachedOrElse(key: K, default: => Future[Option[V]]): Future[Option[V]] = Option(cache.get(key)).fold(default)(Future.successful)
 
-  private def loadFromDb(key: K): Future[Option[V]] = storage.read { dao.get(key)(_) } map { value =>
-    Option(cache.get(key)).getOrElse {
-      cache.put(key, value)
-      value
+  private def scheduleLoad(key: K): Future[Option[V]] = {
+    if (pendingLoads.isEmpty) Future { loadPending() } // executed after requests already queued on executionContext, so they end up in the same batch
+    returning(Promise[Option[V]]()) { pendingLoads.put(key, _) } .future
+  }
+
+  private def loadPending(): Unit = {
+    val requests = pendingLoads.toMap
+    pendingLoads.clear()
+    verbose(s"loading ${requests.size} keys")
+
+    synced(storage.read { dao.getAll(requests.keys)(_) }) map { _.toMap } onComplete { result =>
+      requests foreach { case (key, p) =>
+        loading.remove(key)
+        p.complete(result map { loaded =>
+          Option(cache.get(key)).getOrElse {
+            val value = loaded.get(key)
+            cache.put(key, value)
+            value
+          }
+        })
+      }
+    }
+  }
+
+  /**
+   * Returns when all changes made so far are saved in db, only needed in write-behind mode.
+   */
+  def flush(): Future[Unit] = writeQueue.fold(Future.successful(()))(_.flush())
+
+  // running bulk import, table indexes are dropped until it's finished
+  @volatile private var importing = Future.successful(())
+
+  // db queries need to wait for running bulk import, and for pending writes in write-behind mode
+  private def synced[A](query: => Future[A]): Future[A] = {
+    val imported = importing
+    val ready = if (imported.isCompleted) writeQueue.map(_.flush()) else Some(imported flatMap { _ => flush() })
+    ready.fold(query)(_ flatMap { _ => query })
+  }
+
+  /**
+   * Detects changes without deep equality when possible: same instance or equal `Versioned.version`.
+   */
+  private def changed(prev: V, next: V): Boolean = (prev.asInstanceOf[AnyRef] ne next.asInstanceOf[AnyRef]) && {
+    prev match {
+      case p: Versioned => next match {
+        case n: Versioned => p.version != n.version
+        case _ => prev != next
+      }
+      case _ => prev != next
+    }
+  }
+
+  private def save(values: Seq[V]): Future[Unit] = writeQueue.fold(storage { dao.insert(values)(_) })(_.save(values))
+
+  /**
+   * Table indexes kept in memory, `find` with `Matcher.equal` or `Matcher.in` on them doesn't query db.
+   * All items are loaded once, on first such lookup, later only changes made through this storage are applied.
+   */
+  protected def memoryIndexes: Seq[Index[V, _]] = Nil
+
+  private lazy val memIndexes: Map[String, MemoryIndex[K, V]] = memoryIndexes.map(i => i.name -> new MemoryIndex[K, V](i))(breakOut)
+
+  // current load, only accessed on `executionContext`, cleared on failure so that next lookup retries
+  private var memIndexesLoading = Option.empty[Future[Unit]]
+
+  private def memIndexesLoaded: Future[Unit] = Future {
+    memIndexesLoading getOrElse returning(loadMemIndexes()) { f =>
+      memIndexesLoading = Some(f)
+      f onFailure { case _ => if (memIndexesLoading.contains(f)) memIndexesLoading = None }
     }
+  } .flatMap(identity)
+
+  // items are read after empty write, so all writes issued before `startLoading` are already committed and visible,
+  // reading on read executor doesn't block writers while whole table is decoded
+  private def loadMemIndexes(): Future[Unit] = {
+    memIndexes.values foreach (_.startLoading())
+    storage { _ => () } flatMap { _ => synced(storage.read { db => dao.list(db).map(v => dao.getId(v) -> v) }) } map { items =>
+      memIndexes.values foreach (_.load(items))
+      verbose(s"memory indexes loaded: ${items.size} items")
+    }
+  }
+
+  // has to be called after db write was issued, see `loadMemIndexes`
+  private def updateIndexes(changes: Traversable[(K, Option[V])]): Unit =
+    if (memIndexes.nonEmpty) changes foreach { case (k, v) => memIndexes.values foreach (_.update(k, v)) }
+
+  def find(matcher: Matcher[V]): Future[Set[K]] = matcher match {
+    case m: Matcher.ValuesMatcher[V @unchecked, _] if memIndexes.contains(m.index.name) =>
+      memIndexesLoaded map { _ => memIndexes(m.index.name)(m.values) } recoverWith {
+        case e: Throwable =>
+          warn("memory index lookup failed, falling back to db", e)
+          findInDb(matcher)
+      }
+    case _ => findInDb(matcher)
   }
 
-  def find(matcher: Matcher[V]): Future[Set[K]] = {
-    val dbSearch = storage.read { dao.find(matcher.whereSql)(_) }
+  private def findInDb(matcher: Matcher[V]): Future[Set[K]] = {
+    val dbSearch = synced(storage.read { dao.find(matcher)(_) })
     val cached = Future { cache.snapshot.asScala.collect { case (k, Some(v)) if matcher(v) => k }.toSet }
     dbSearch.flatMap(d => cached.map(_ ++ d))
   }
 
-  def query(matcher: Matcher[V]): Future[Cursor] = storage.read { dao.query(matcher.whereSql)(_) }
+  def query(matcher: Matcher[V]): Future[Cursor] = synced(storage.read { dao.query(matcher)(_) })
 
-  def list(matcher: Matcher[V]): Future[Seq[V]] = storage.read { db => dao.list(dao.query(matcher.whereSql)(db)) } // TODO: add loaded items to cache
+  def list(matcher: Matcher[V]): Future[Seq[V]] = synced(storage.read { db => dao.list(dao.query(matcher)(db)) }) // TODO: add loaded items to cache
+
+  /**
+   * Decodes matching rows one at a time and passes them to `f`, which is executed on db read thread.
+   */
+  def foreach(matcher: Matcher[V])(f: V => Unit): Future[Unit] = synced(storage.read { db => dao.foreach(dao.query(matcher)(db))(f) })
+
+  /**
+   * Loads single page of items matching given matcher, ordered by index.
+   * @param after - cursor returned with previous page
+   */
+  def page[B](index: Index[V, B], matcher: Matcher[V] = Matcher.all[V], after: Option[(B, K)] = None, limit: Int = Page.DefaultSize): Future[Page[K, V, B]] =
+    synced(storage.read { dao.page(index, matcher, after, limit)(_) }) map { items =>
+      Page(items, if (items.size < limit) None else items.lastOption.map(v => (index(v), dao.getId(v))))
+    }
 
-  def count(matcher: Matcher[V]): Future[Long] = storage.read { dao.count(matcher.whereSql)(_) }
+  /**
+   * Loads first `limit` items matching given matcher, ordered by index.
+   */
+  def top[B](index: Index[V, B], matcher: Matcher[V] = Matcher.all[V], limit: Int = Page.DefaultSize, descending: Boolean = false): Future[Seq[V]] =
+    synced(storage.read { dao.top(index, matcher, limit, descending)(_) })
+
+  /**
+   * Loads ids and index values of matching items, without decoding item data.
+   */
+  def project[B](index: Index[V, B], matcher: Matcher[V] = Matcher.all[V]): Future[Seq[(K, B)]] =
+    synced(storage.read { dao.project(index, matcher)(_) })
+
+  def project[B, C](index1: Index[V, B], index2: Index[V, C], matcher: Matcher[V]): Future[Seq[(K, B, C)]] =
+    synced(storage.read { dao.project(index1, index2, matcher)(_) })
+
+  /**
+   * Loads matching rows without decoding them, item is decoded when `LazyRow.item` is first accessed.
+   */
+  def lazyRows(matcher: Matcher[V] = Matcher.all[V]): Future[Seq[LazyRow[K, V]]] =
+    synced(storage.read { dao.lazyRows(matcher)(_) })
+
+  def count(matcher: Matcher[V]): Future[Long] = synced(storage.read { dao.count(matcher)(_) })
 
   def remove(matcher: Matcher[V]): Future[Unit] = find(matcher) map { _ foreach remove }
 
   def insert(item: V) = updateOrCreate(dao.getId(item), _ => item, item)
 
+  /**
+   * Imports large number of items using `Dao.bulkImport`, `items` are consumed on db write thread.
+   * Queries wait until import is finished. Cache is cleared after import, instead of per item change events
+   * `onReset` is sent (signals reload their data) and per key listeners receive current values.
+   */
+  def bulkImport(items: TraversableOnce[V], progress: Int => Unit = { _ => () }): Future[Int] = {
+    val indexed = if (memIndexes.isEmpty) items else items.toIterator map { v => returning(v) { v => updateIndexes(Seq(dao.getId(v) -> Some(v))) } }
+    val result = flush() flatMap { _ => storage.bulkImport(dao, indexed, progress) } andThen { case _ =>
+      cache.evictAll()
+      reloadKeyed()
+      onReset ! (())
+    }
+    importing = result.map(_ => ()).recover { case _ => () }
+    result
+  }
+
+  private def reloadKeyed(): Unit = {
+    val keys = keyedChanges.keys
+    if (keys.nonEmpty) getAll(keys) foreach { values =>
+      keyedChanges.dispatch(keys.zip(values) map { case (k, v) => k -> v.fold[Cmd[K, V]](Del(k))(Add(_)) })
+    }
+  }
+
   def add(item: V) = addInternal(dao.getId(item), item)
 
+  /**
+   * Returns cached value or loads it from db.
+   * Concurrent misses are folded into single multi-key query, and the same key is never loaded twice at a time.
+   */
   def get(key: K): Future[Option[V]] = cachedOrElse(key, Future {
-    loadFuture = loadFuture recover { case t: Throwable => error("loadFuture failed", t) } flatMap { _ => cachedOrElse(key, loadFromDb(key)) }
-    loadFuture
+    cachedOrElse(key, loading.getOrElseUpdate(key, scheduleLoad(key)))
   }.flatMap(identity))
 
   def getOrCreate(key: K, creator: => V): Future[V] = get(key) flatMap { value =>
     value.orElse(Option(cache.get(key)).flatten).fold(addInternal(key, creator))(Future.successful)
   }
 
-  def listAll = storage.read { dao.list(_) }
+  def listAll = synced(storage.read { dao.list(_) })
 
   def getAll(keys: Traversable[K]): Future[Seq[Option[V]]] = {
     val cachedEntries = keys.flatMap { key => Option(cache.get(key)) map { value => (key, value) } }.toMap
     val missingKeys = keys.toSet -- cachedEntries.keys
-    val loaderOfMissing = { (keys: Seq[K], db: SQLiteDatabase) => keys.flatMap(key => dao.get(key)(db).map { value => (key, value) })}
 
-    storage.read { db => loaderOfMissing(missingKeys.toSeq, db) } map { loadedEntries =>
-      val loadedMap = loadedEntries .map { case (key, value) =>
-        Option(cache.get(key)).map((key, _)).getOrElse {
-          cache.put(key, Some(value))
-          (key, Some(value))
+    val loadMissing =
+      if (missingKeys.isEmpty) Future.successful(Seq.empty[(K, V)])
+      else synced(storage.read { dao.getAll(missingKeys)(_) })
+
+    loadMissing map { loadedEntries =>
+      val loaded = loadedEntries.toMap
+      val loadedMap: Map[K, Option[V]] = missingKeys.map { key =>
+        key -> Option(cache.get(key)).getOrElse {
+          val value = loaded.get(key)
+          cache.put(key, value)
+          value
         }
-      } .toMap
+      } (breakOut)
 
       keys .map { key =>
         loadedMap.get(key).orElse(cachedEntries.get(key)).getOrElse(None)
@@ -101,7 +287,7 @@ abstract class CachedStorage[K, V](implicit val dao: Dao[K, V], inj: Injector) e
       val updated = keys.zip(values) .flatMap { case (k, v) =>
         Option(cache.get(k)).flatten.orElse(v).flatMap { value =>
           val updated = updater(value)
-          if (updated != value) {
+          if (changed(value, updated)) {
             cache.put(k, Some(updated))
             Some(value -> updated)
           } else None
@@ -110,8 +296,9 @@ abstract class CachedStorage[K, V](implicit val dao: Dao[K, V], inj: Injector) e
 
       if (updated.isEmpty) Future.successful(Seq.empty)
       else
-        returning (storage { dao.insert(updated.map(_._2))(_) } .map { _ => updated }) { _ =>
-          onUpdated ! updated
+        returning (save(updated.map(_._2)).map { _ => updated }) { _ =>
+          updateIndexes(updated.map { case (_, v) => dao.getId(v) -> Some(v) })
+          notifyUpdated(updated)
         }
     }
   }
@@ -127,7 +314,7 @@ abstract class CachedStorage[K, V](implicit val dao: Dao[K, V], inj: Injector) e
         val current = loaded.get(key).flatten
         val next = updater(key, current)
         current match {
-          case Some(c) if c != next =>
+          case Some(c) if changed(c, next) =>
             cache.put(key, Some(next))
             toSave += next
             updated += (c -> next)
@@ -143,41 +330,95 @@ abstract class CachedStorage[K, V](implicit val dao: Dao[K, V], inj: Injector) e
       val addedResult = added.result
       val updatedResult = updated.result
 
-      returning (storage { dao.insert(toSave.result)(_) } .map { _ => result }) { _ =>
-        if (addedResult.nonEmpty) onAdded ! addedResult
-        if (updatedResult.nonEmpty) onUpdated ! updatedResult
+      val saved = toSave.result
+      returning (save(saved).map { _ => result }) { _ =>
+        updateIndexes(saved.map(v => dao.getId(v) -> Some(v)))
+        if (addedResult.nonEmpty) notifyAdded(addedResult)
+        if (updatedResult.nonEmpty) notifyUpdated(updatedResult)
       }
     }
   }
 
   private def addInternal(key: K, value: V): Future[V] =
-    if (cache.put(key, Some(value)) == Some(value)) Future successful value // put may return null - don't use contains
+    if (Option(cache.put(key, Some(value))).flatten.exists(!changed(_, value))) Future successful value // put may return null
     else {
-      returning(storage { dao.insert(Seq(value))(_) }.map { _ => value }) { _ =>
-        onAdded ! Seq(value)
+      returning(save(Seq(value)).map { _ => value }) { _ =>
+        updateIndexes(Seq(key -> Some(value)))
+        notifyAdded(Seq(value))
       }
     }
 
   private def updateInternal(key: K, updater: V => V)(current: V): Future[Option[(V, V)]] = {
     val updated = updater(current)
-    if (updated == current) Future.successful(None)
+    if (!changed(current, updated)) Future.successful(None)
     else {
       cache.put(key, Some(updated))
-      returning(storage { dao.insert(Seq(updated))(_) } .map { _ => Some((current, updated)) }) { _ =>
-        onUpdated ! Seq((current, updated))
+      returning(save(Seq(updated)).map { _ => Some((current, updated)) }) { _ =>
+        updateIndexes(Seq(key -> Some(updated)))
+        notifyUpdated(Seq((current, updated)))
       }
     }
   }
 
+  /**
+   * @return number of deleted rows, in write-behind mode known (and completed) only after the pending writes are flushed
+   */
   def remove(key: K): Future[Int] = Future {
     cache.put(key, None)
-    returning(storage { dao.delete(key)(_) }) { _ => onRemoved ! Seq(key) }
+    val deleted = writeQueue.fold(storage { dao.delete(key)(_) })(_.remove(Seq(key)))
+    returning(deleted) { _ =>
+      updateIndexes(Seq(key -> None))
+      notifyRemoved(Seq(key))
+    }
   } .flatMap(identity)
 
   def removeAll(keys: Seq[K]): Future[Unit] = Future {
     keys foreach { cache.put(_, None) }
-    returning(storage { dao.deleteAll(keys)(_) }) { _ => onRemoved ! keys }
+    val deleted = writeQueue.fold(storage { dao.deleteAll(keys)(_) })(_.remove(keys).map(_ => ()))
+    returning(deleted) { _ =>
+      updateIndexes(keys.map(_ -> None))
+      notifyRemoved(keys)
+    }
   } .flatMap(identity)
+
+  /**
+   * Adds or updates items as part of given unit of work, cache, memory indexes and listeners are only updated once it's committed.
+   * @return future completed after commit
+   */
+  def save(items: Seq[V], uow: UnitOfWork): Future[Unit] = {
+    val keys = items.map(dao.getId)
+    // pending write-behind writes are saved first, current values are loaded to tell added items from updated ones
+    val current = flush() flatMap { _ => getAll(keys) }
+    uow.join(current map { _ => { db: SQLiteDatabase => dao.insert(items)(db) } }) flatMap { _ => current } map { loaded =>
+      val added = Seq.newBuilder[V]
+      val updated = Seq.newBuilder[(V, V)]
+      keys.zip(items).zip(loaded) foreach { case ((key, item), loadedValue) =>
+        Option(cache.put(key, Some(item))).getOrElse(loadedValue) match { // put may return null
+          case Some(prev) => if (changed(prev, item)) updated += (prev -> item)
+          case None => added += item
+        }
+      }
+      writeQueue foreach { _.save(items) } // writes queued in the meantime must not overwrite committed items
+      updateIndexes(keys.zip(items.map(Some(_))))
+
+      val addedResult = added.result
+      val updatedResult = updated.result
+      if (addedResult.nonEmpty) notifyAdded(addedResult)
+      if (updatedResult.nonEmpty) notifyUpdated(updatedResult)
+    }
+  }
+
+  /**
+   * Removes items as part of given unit of work, cache, memory indexes and listeners are only updated once it's committed.
+   * @return future completed after commit
+   */
+  def removeAll(keys: Seq[K], uow: UnitOfWork): Future[Unit] =
+    uow.join(flush() map { _ => { db: SQLiteDatabase => dao.deleteAll(keys)(db) } }) map { _ =>
+      keys foreach { cache.put(_, None) }
+      writeQueue foreach { _.remove(keys) }
+      updateIndexes(keys.map(_ -> None))
+      notifyRemoved(keys)
+    }
 }
 
 
@@ -191,86 +432,469 @@ trait CachedStorageSignal[K, V] { self: CachedStorage[K, V] =>
 
   private def loadAll: Future[Map[K, V]] = listAll map { _.map(v => dao.getId(v) -> v)(breakOut) }
 
-  def onChange(key: K) = {
-    val added = onAdded.map[Seq[Cmd[K, V]]](_.filter(v => dao.getId(v) == key).map(Add(_))).filter(_.nonEmpty)
-    val updated = onUpdated.map[Seq[Cmd[K, V]]](_.filter(v => dao.getId(v._2) == key).map(p => Add(p._2))).filter(_.nonEmpty)
-    val removed = onRemoved.map[Seq[Cmd[K, V]]](_.filter(_ == key).map(Del(_))).filter(_.nonEmpty)
-    EventStream.union[Seq[Cmd[K, V]]](added, updated, removed)
+  /**
+   * Changes of single item, only notified when this key changes (doesn't filter all storage events).
+   */
+  def onChange(key: K): EventStream[Seq[Cmd[K, V]]] = new EventStream[Seq[Cmd[K, V]]] {
+    private var unsubscribe = Option.empty[() => Unit]
+
+    override protected def onWire(): Unit = unsubscribe = Some(keyedChanges.subscribe(key)(publish))
+
+    override protected def onUnwire(): Unit = {
+      unsubscribe foreach (_())
+      unsubscribe = None
+    }
+  }
+
+  /**
+   * Enables coalescing of `all` and `findSignal` notifications, they are published at most once per given interval
+   * (on main looper), use `CachedStorageSignal.FrameDelay` to publish once per frame.
+   */
+  protected def notifyInterval: Option[FiniteDuration] = None
+
+  // collects commands and publishes them together, at most once per `notifyInterval`
+  private def coalesced[A](source: EventStream[Seq[A]])(implicit ev: EventContext): EventStream[Seq[A]] = notifyInterval.fold(source) { interval =>
+    new EventStream[Seq[A]] {
+      private var subscription = Option.empty[Subscription]
+      private var buffer = Vector.empty[A]
+
+      private val flush = new ThrottledAction(Some(interval))({
+        val events = synchronized { returning(buffer) { _ => buffer = Vector.empty } }
+        if (events.nonEmpty) publish(events)
+      })
+
+      override protected def onWire(): Unit = subscription = Some(source { as =>
+        synchronized { buffer ++= as }
+        flush()
+      })
+
+      override protected def onUnwire(): Unit = {
+        subscription foreach (_.destroy())
+        subscription = None
+        flush.cancel()
+        synchronized { buffer = Vector.empty }
+      }
+    }
   }
 
-  def all(implicit ev: EventContext): Signal[Map[K, V]] = new AggregatingSignal[Seq[Cmd[K, V]], Map[K, V]](onChanged, loadAll, { (values, cmds) =>
+  // all items loaded again after every `onReset`
+  private def reloaded(implicit ev: EventContext): EventStream[Seq[Cmd[K, V]]] = new EventStream[Seq[Cmd[K, V]]] {
+    private var subscription = Option.empty[Subscription]
+
+    override protected def onWire(): Unit = subscription = Some(onReset { _ =>
+      loadAll foreach { values => publish(Seq(Reset(values))) }
+    })
+
+    override protected def onUnwire(): Unit = {
+      subscription foreach (_.destroy())
+      subscription = None
+    }
+  }
+
+  def all(implicit ev: EventContext): Signal[Map[K, V]] = new AggregatingSignal[Seq[Cmd[K, V]], Map[K, V]](EventStream.union[Seq[Cmd[K, V]]](coalesced(onChanged), reloaded), loadAll, { (values, cmds) =>
     var res = values
     cmds foreach {
       case Add(v) => res += (dao.getId(v) -> v)
       case Del(k) => res -= k
+      case Reset(vs) => res = vs
     }
     res
   })
 
   def signal(id: K)(implicit ev: EventContext): Signal[Option[V]] = {
-    val added = onAdded.map(_.reverseIterator.find(v => dao.getId(v) == id)).filter(_.nonEmpty)
-    val updated = onUpdated.map(_.reverseIterator.collectFirst { case (_, v) if dao.getId(v) == id => v }).filter(_.nonEmpty)
-    val removed = onRemoved.filter(_.contains(id)).map(_ => Option.empty[V])
-
-    Signal.wrap(EventStream.union(added, updated, removed)).orElse(Signal.future(get(id)))
+    val changes = onChange(id) map { _.last match {
+      case Add(v) => Some(v)
+      case _ => Option.empty[V]
+    } }
+    Signal.wrap(changes).orElse(Signal.future(get(id)))
   }
 
+  /**
+   * Ids of items matching given matcher. Changes received while ids are loaded are applied on top of loaded result.
+   */
   def findSignal(matcher: Matcher[V])(implicit ev: EventContext): Signal[Set[K]] = new Signal[Set[K]] {
+    // all state is guarded by signal lock
+    private var observers = Seq.empty[Subscription]
+    private var generation = 0
+    private var current = Option.empty[Set[K]]
+    private var pending = Vector.empty[(K, Boolean)] // (id, matches) changes received while loading
+
+    private val publishCurrent = new ThrottledAction(notifyInterval)(synchronized { current foreach publish })
+
+    private def applyChanges(ids: Set[K], changes: Seq[(K, Boolean)]) = changes.foldLeft(ids) {
+      case (res, (id, true)) => res + id
+      case (res, (id, false)) => res - id
+    }
 
-    def reload(): Unit = {
+    private def changed(changes: Seq[(K, Boolean)]): Unit = if (changes.nonEmpty) {
+      synchronized {
+        current match {
+          case Some(ids) => current = Some(applyChanges(ids, changes))
+          case None => pending ++= changes
+        }
+      }
+      publishCurrent()
+    }
+
+    private def reload(): Unit = {
+      val gen = synchronized {
+        generation += 1
+        generation
+      }
       verbose(s"reload ${matcher.whereSql}")
-      storage.read { dao.find(matcher.whereSql)(_) } onSuccess {
-        case ids =>
-          verbose(s"found: $ids")
-          publish(value.getOrElse(Set.empty) ++ ids)
+      self.find(matcher) onSuccess { case ids =>
+        verbose(s"found: $ids")
+        synchronized {
+          if (gen == generation) {
+            current = Some(applyChanges(ids, pending))
+            pending = Vector.empty
+          }
+        }
+        publishCurrent()
+      }
+    }
+
+    override protected def onWire(): Unit = {
+      clear()
+      observers = Seq(
+        onAdded { vs => changed(vs.collect { case v if matcher(v) => dao.getId(v) -> true }) },
+        onUpdated { vs => changed(vs.collect { case (prev, up) if matcher(prev) || matcher(up) => dao.getId(up) -> matcher(up) }) },
+        onRemoved { ids => changed(ids.map(_ -> false)) },
+        onReset { _ =>
+          synchronized {
+            current = None // changes received from now on are applied to reloaded ids
+            pending = Vector.empty
+          }
+          reload()
+        }
+      )
+      reload()
+    }
+
+    override protected def onUnwire(): Unit = {
+      verbose(s"onUnwire")
+      observers foreach (_.destroy())
+      publishCurrent.cancel()
+      synchronized {
+        generation += 1
+        current = None
+        pending = Vector.empty
       }
+      clear()
     }
+  }
 
+  /**
+   * Signal with items loaded page by page, ordered by given index.
+   * Next page is only loaded on `loadMore()`, changes reload just the range loaded so far.
+   * Only one reload runs at a time (throttled with `notifyInterval`), changes received meanwhile cause single reload after it.
+   */
+  def pagedSignal[B](index: Index[V, B], matcher: Matcher[V] = Matcher.all[V], pageSize: Int = Page.DefaultSize)(implicit ev: EventContext): PagedSignal[V] = new PagedSignal[V] {
+    // all state is guarded by signal lock
     private var observers = Seq.empty[Subscription]
+    private var generation = 0 // incremented on every reload, results of outdated requests are dropped
+    private var items = Vector.empty[V]
+    private var next = Option.empty[(B, K)]
+    private var reloading = false
+    private var dirty = false // changes received while reloading, one more reload is needed
+    private var loadingMore = false
+    private var moreRequested = false // `loadMore` called while reloading, executed after reload
+
+    private val scheduleReload = new ThrottledAction(notifyInterval)(reload())
+
+    override def hasMore = synchronized { next.isDefined }
+
+    override def loadMore(): Unit = synchronized {
+      if (reloading) moreRequested = true
+      else if (!loadingMore) next foreach { after =>
+        loadingMore = true
+        val gen = generation
+        page(index, matcher, Some(after), pageSize) onComplete { res =>
+          synchronized {
+            if (gen == generation) {
+              loadingMore = false
+              res foreach { p =>
+                items ++= p.items
+                next = p.next
+                publish(items)
+              }
+            }
+          }
+        }
+      }
+    }
+
+    // only one reload runs at a time, changes received meanwhile cause one more reload once it's finished
+    private def reload(): Unit = {
+      val request = synchronized {
+        if (reloading) {
+          dirty = true
+          None
+        } else {
+          generation += 1
+          reloading = true
+          dirty = false
+          loadingMore = false // page loaded in the meantime would follow outdated cursor
+          Some((generation, pageSize max items.size))
+        }
+      }
+      request foreach { case (gen, limit) =>
+        verbose(s"reload paged ${matcher.whereSql}, limit: $limit")
+        page(index, matcher, None, limit) onComplete { res =>
+          val (again, more) = synchronized {
+            if (gen != generation) (false, false)
+            else {
+              reloading = false
+              res foreach { p =>
+                items = p.items.toVector
+                next = p.next
+                publish(items)
+              }
+              returning((dirty, moreRequested && !dirty)) { _ => if (!dirty) moreRequested = false }
+            }
+          }
+          if (again) reload()
+          else if (more) loadMore()
+        }
+      }
+    }
+
+    private def loaded(key: K) = synchronized { items.exists(dao.getId(_) == key) }
 
     override protected def onWire(): Unit = {
+      observers = Seq(
+        onAdded { vs => if (vs.exists(matcher(_))) scheduleReload() },
+        onUpdated { vs => if (vs.exists { case (prev, up) => matcher(prev) || matcher(up) }) scheduleReload() },
+        onRemoved { ks => if (ks.exists(loaded)) scheduleReload() },
+        onReset { _ => scheduleReload() }
+      )
+      reload()
+    }
+
+    override protected def onUnwire(): Unit = {
+      observers foreach (_.destroy())
+      scheduleReload.cancel()
+      synchronized {
+        generation += 1
+        reloading = false
+        dirty = false
+        loadingMore = false
+        moreRequested = false
+        items = Vector.empty
+        next = None
+      }
       clear()
+    }
+  }
+
+  /**
+   * First `limit` items ordered by index. Changes are applied to loaded window in memory,
+   * db is queried again only if full window loses an item and has to be refilled.
+   */
+  def topSignal[B: Ordering](index: Index[V, B], matcher: Matcher[V] = Matcher.all[V], limit: Int = Page.DefaultSize, descending: Boolean = false)(implicit ev: EventContext): Signal[Seq[V]] = new Signal[Seq[V]] {
+    private val ordering = {
+      val ord = Ordering.Tuple2(implicitly[Ordering[B]], Ordering.String).on[V] { v => (index(v), dao.IdIndex.dbType.arg(dao.getId(v))) } // same as sql: index, _id
+      if (descending) ord.reverse else ord
+    }
+    private var observers = Seq.empty[Subscription]
+    private var generation = 0
+    private var loading = false
+    private var pending = Vector.empty[(Seq[V], Set[K])] // changes received while loading, applied to loaded window
+    private var items = Vector.empty[V]
+
+    private def reload(): Unit = {
+      val gen = synchronized {
+        generation += 1
+        loading = true
+        pending = Vector.empty
+        generation
+      }
+      verbose(s"reload top ${matcher.whereSql}, limit: $limit")
+      top(index, matcher, limit, descending) onSuccess { case vs =>
+        val reloadNeeded = synchronized {
+          gen == generation && {
+            loading = false
+            items = vs.toVector
+            val changes = pending
+            pending = Vector.empty
+            val refill = changes exists { case (updated, removed) => !applyChanges(updated, removed) }
+            if (!refill) publish(items)
+            refill
+          }
+        }
+        if (reloadNeeded) reload()
+      }
+    }
+
+    /**
+     * Applies changes to loaded window, has to be called with lock held.
+     * @return false if window lost an item and has to be refilled from db
+     */
+    private def applyChanges(updated: Seq[V], removed: Set[K]): Boolean = {
+      val full = items.size >= limit
+      val keys = removed ++ updated.map(dao.getId)
+      val matching = updated.filter(matcher(_))
+      // when window is full, items after its last one are unknown, so new items can only be placed before it
+      val candidates = if (full) matching.filter(ordering.lteq(_, items.last)) else matching
+      val window = (items.filterNot(v => keys(dao.getId(v))) ++ candidates).sorted(ordering).take(limit)
+      items = window
+      !(full && window.size < limit)
+    }
+
+    private def changed(updated: Seq[V], removed: Set[K]): Unit = {
+      val reloadNeeded = synchronized {
+        if (loading) {
+          pending :+= (updated, removed)
+          false
+        } else {
+          val prev = items
+          val complete = applyChanges(updated, removed)
+          if (complete && items != prev) publish(items)
+          !complete
+        }
+      }
+      if (reloadNeeded) reload()
+    }
+
+    override protected def onWire(): Unit = {
       observers = Seq(
-        // FIXME: possible race conditions - on every upate
-        onAdded { vs =>
-          vs.reverseIterator.find(matcher(_)) foreach { v => publish(value.getOrElse(Set.empty) + dao.getId(v)) }
-        },
-        onUpdated { _ foreach {
-          case (prev, up) =>
-            (matcher(prev), matcher(up)) match {
-              case (true, false) => value foreach { s => this.publish(s - dao.getId(prev)) }
-              case (false, true) => publish(value.getOrElse(Set.empty) + dao.getId(up))
-              case _ =>
-            }
-        } },
-        onRemoved { ids => value foreach { s => publish(s -- ids) } }
+        onAdded { vs => changed(vs, Set.empty) },
+        onUpdated { vs => changed(vs.map(_._2), Set.empty) },
+        onRemoved { ks => changed(Nil, ks.toSet) },
+        onReset { _ => reload() }
       )
       reload()
     }
 
     override protected def onUnwire(): Unit = {
-      verbose(s"onUnwire")
       observers foreach (_.destroy())
+      synchronized {
+        generation += 1
+        loading = false
+        pending = Vector.empty
+        items = Vector.empty
+      }
       clear()
     }
   }
 
-  def querySignal(matcher: Matcher[V]): Signal[Cursor] =
-    Signal.wrap(onChanged).orElse(Signal.const(null)) flatMap { _ =>
-      verbose(s"requery ${matcher.whereSql}")
-      Signal.future(query(matcher)) map (new AutoCloseCursor(_))
+  /**
+   * Cursor with rows matching given matcher. Changes are checked with matcher in memory, and query is executed again
+   * only if they could affect the result, at most once per frame. Only one query runs at a time, changes received while
+   * it's running trigger one more query after its result is published. Signal releases replaced cursor right after publishing
+   * new one, see `QueryCursor` for using cursor outside of observer callback.
+   */
+  def querySignal(matcher: Matcher[V])(implicit ev: EventContext): Signal[QueryCursor] = new Signal[QueryCursor] {
+    private var observers = Seq.empty[Subscription]
+    private var generation = 0
+    private var cursor = Option.empty[QueryCursor]
+    private var running = false // query in flight, changes received meanwhile only mark result as dirty
+    private var dirty = false
+    private val scheduleRequery = new ThrottledAction(Some(FrameDelay))(requery())
+
+    private def requery(): Unit = {
+      val gen = synchronized {
+        if (running) {
+          dirty = true
+          None
+        } else {
+          running = true
+          dirty = false
+          Some(generation)
+        }
+      }
+      gen foreach { gen =>
+        verbose(s"requery ${matcher.whereSql}")
+        query(matcher) onComplete { res =>
+          val (replaced, again) = synchronized {
+            if (gen != generation) (res.toOption, false) // unwired in the meantime
+            else {
+              running = false
+              res.failed foreach { e => warn(s"query failed: ${matcher.whereSql}", e) }
+              val prev = res.toOption.flatMap { c =>
+                returning(cursor) { _ =>
+                  val qc = new QueryCursor(c)
+                  cursor = Some(qc)
+                  publish(qc)
+                }
+              }
+              (prev, dirty)
+            }
+          }
+          replaced foreach { _.close() } // actually closed once observers which acquired it release it
+          if (again) requery()
+        }
+      }
     }
+
+    private def nonEmpty = synchronized { cursor.exists(_.getCount > 0) }
+
+    override protected def onWire(): Unit = {
+      observers = Seq(
+        onAdded { vs => if (vs.exists(matcher(_))) scheduleRequery() },
+        onUpdated { vs => if (vs.exists { case (prev, up) => matcher(prev) || matcher(up) }) scheduleRequery() },
+        onRemoved { _ => if (nonEmpty) scheduleRequery() }, // ids are not known without reading whole cursor
+        onReset { _ => scheduleRequery() }
+      )
+      requery()
+    }
+
+    override protected def onUnwire(): Unit = {
+      observers foreach (_.destroy())
+      scheduleRequery.cancel()
+      synchronized {
+        generation += 1
+        running = false
+        dirty = false
+        cursor foreach { _.close() }
+        cursor = None
+      }
+      clear()
+    }
+  }
+}
+
+/**
+ * Single page of items loaded with keyset pagination.
+ * @param next - cursor (index value and id of last item) for loading next page, None if there are no more items
+ */
+case class Page[K, V, B](items: Seq[V], next: Option[(B, K)])
+
+object Page {
+  val DefaultSize = 50
+}
+
+abstract class PagedSignal[V] extends Signal[Seq[V]] {
+  def hasMore: Boolean
+  def loadMore(): Unit
 }
 
 object CachedStorageSignal {
+  val FrameDelay = 16.millis
+
   trait Cmd[+K, +V]
   case class Add[V](v: V) extends Cmd[Nothing, V]
   case class Del[K](k: K) extends Cmd[K, Nothing]
+  case class Reset[K, V](values: Map[K, V]) extends Cmd[K, V] // replaces all items
 }
 
-class AutoCloseCursor(c: Cursor) extends CursorWrapper(c) {
-  override def finalize(): Unit = {
-    Try(c.close())
-    super.finalize()
+/**
+ * Cursor published by `querySignal`, shared by signal and its observers, it's closed once all of them closed it.
+ * Signal holds one reference and releases it as soon as cursor is replaced, so observer which uses cursor after
+ * its callback returns (on other thread, or keeps it in adapter) has to `acquire()` it in that callback and `close()` it when done.
+ */
+class QueryCursor(c: Cursor) extends CursorWrapper(c) {
+  private var refs = 1 // guarded by this
+
+  /**
+   * @return false if cursor was already released by everyone, it must not be used then (newer cursor is being published)
+   */
+  def acquire(): Boolean = synchronized {
+    refs > 0 && { refs += 1; true }
   }
+
+  override def close(): Unit =
+    if (synchronized { refs > 0 && { refs -= 1; refs == 0 } }) super.close()
+
+  override def isClosed: Boolean = synchronized { refs == 0 } || super.isClosed
 }
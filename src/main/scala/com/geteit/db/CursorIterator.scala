@@ -0,0 +1,23 @@
+package com.geteit.db
+
+import java.io.Closeable
+
+import android.database.Cursor
+
+class CursorIterator[A](c: Cursor, decode: Cursor => A) extends Iterator[A] with Closeable {
+  private var hasNextRow = c.moveToNext()
+
+  if (!hasNextRow) c.close()
+
+  override def hasNext: Boolean = hasNextRow
+
+  override def next(): A = {
+    if (!hasNextRow) throw new NoSuchElementException("No more rows in cursor")
+    val item = decode(c)
+    hasNextRow = c.moveToNext()
+    if (!hasNextRow) c.close()
+    item
+  }
+
+  override def close(): Unit = if (!c.isClosed) c.close()
+}
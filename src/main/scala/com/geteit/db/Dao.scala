@@ -2,10 +2,16 @@ package com.geteit.db
 
 import android.database.{DatabaseUtils, Cursor}
 import android.database.sqlite.{SQLiteProgram, SQLiteDatabase, SQLiteStatement}
+import android.os.Build
 import com.geteit.db.DbType.Text
 import com.geteit.json.{JsonDecoder, JsonEncoder}
+import com.geteit.util.Log._
 import com.geteit.util.returning
 
+import scala.concurrent.duration.Duration
+import scala.concurrent.forkjoin.ForkJoinPool
+import scala.concurrent.{Await, ExecutionContext, Future}
+
 trait Id[A] {
   def decode(s: String): A
   def encode(v: A): String = v.toString
@@ -24,7 +30,9 @@ object Id {
 trait DbType[A] {
   val sqlName: String
   def literal(v: A): String
+  def arg(v: A): String // value passed in selection args
   def bind(stmt: SQLiteProgram, pos: Int, v: A)
+  def read(c: Cursor, index: Int): A
 }
 object DbType {
   trait Text { self: DbType[_] =>
@@ -36,19 +44,27 @@ object DbType {
 
   implicit object StringDbType extends DbType[String] with Text {
     def literal(v: String) = s"'$v'"
+    def arg(v: String) = v
     def bind(stmt: SQLiteProgram, pos: Int, v: String) = stmt.bindString(pos, v)
+    def read(c: Cursor, index: Int) = c.getString(index)
   }
   implicit object IntDbType extends DbType[Int] with Integer {
     def literal(v: Int) = v.toString
+    def arg(v: Int) = v.toString
     def bind(stmt: SQLiteProgram, pos: Int, v: Int) = stmt.bindLong(pos, v)
+    def read(c: Cursor, index: Int) = c.getInt(index)
   }
   implicit object LongDbType extends DbType[Long] with Integer {
     def literal(v: Long) = v.toString
+    def arg(v: Long) = v.toString
     def bind(stmt: SQLiteProgram, pos: Int, v: Long) = stmt.bindLong(pos, v)
+    def read(c: Cursor, index: Int) = c.getLong(index)
   }
   implicit object BoolDbType extends DbType[Boolean] with Integer {
     def literal(v: Boolean) = if (v) "1" else "0"
+    def arg(v: Boolean) = literal(v)
     def bind(stmt: SQLiteProgram, pos: Int, v: Boolean) = stmt.bindLong(pos, if (v) 1 else 0)
+    def read(c: Cursor, index: Int) = c.getInt(index) != 0
   }
 }
 
@@ -63,12 +79,20 @@ case class Index[A, B](name: String, ext: A => B)(implicit val dbType: DbType[B]
   def apply(item: A) = ext(item)
 }
 
+/**
+ * Where clause with `?` placeholders for values passed in `whereArgs`,
+ * so that the same query shape always produces the same sql (and can reuse compiled statement).
+ */
 trait Matcher[A] {
   val whereSql: String
+  val whereArgs: Seq[String] = Nil
   def apply(item: A): Boolean
 }
 
 object Matcher {
+  private val LikeEscape = "\\"
+
+  private def escapeLike(str: String) = str.replace(LikeEscape, LikeEscape * 2).replace("%", LikeEscape + "%").replace("_", LikeEscape + "_")
 
   def all[A] = new Matcher[A] {
     override val whereSql: String = "1 = 1"
@@ -76,49 +100,109 @@ object Matcher {
   }
 
   def like[A](index: Index[A, String])(query: String): Matcher[A] = new Matcher[A] {
-    override val whereSql: String = s"${index.name} LIKE '%$query%'"
+    override val whereSql: String = s"${index.name} LIKE ? ESCAPE '$LikeEscape'"
+    override val whereArgs = Seq(s"%${escapeLike(query)}%")
     override def apply(item: A): Boolean = index(item).contains(query)
   }
 
   def startsWith[A](index: Index[A, String])(prefix: String): Matcher[A] = new Matcher[A] {
-    override val whereSql: String = s"${index.name} LIKE '$prefix%'"
+    override val whereSql: String = s"${index.name} LIKE ? ESCAPE '$LikeEscape'"
+    override val whereArgs = Seq(s"${escapeLike(prefix)}%")
     override def apply(item: A): Boolean = index(item).startsWith(prefix)
   }
 
-  def equal[A, B](index: Index[A, B])(v: B): Matcher[A] = new Matcher[A] {
-    override val whereSql: String = s"${index.name} = ${index.dbType.literal(v)}"
-    override def apply(item: A): Boolean = index(item) == v
+  /**
+   * Matches items with index value in given set, exposes index and values so lookups can be answered from `MemoryIndex`.
+   */
+  class ValuesMatcher[A, B](val index: Index[A, B], val values: Set[B]) extends Matcher[A] {
+    override val whereSql: String =
+      if (values.size == 1) s"${index.name} = ?"
+      else s"${index.name} in (${Seq.fill(values.size)("?").mkString(",")})"
+    override val whereArgs = values.toSeq.map(index.dbType.arg)
+    override def apply(item: A): Boolean = values(index(item))
   }
 
+  def equal[A, B](index: Index[A, B])(v: B): Matcher[A] = new ValuesMatcher(index, Set(v))
+
   def less[A, B: Ordering](index: Index[A, B])(v: B): Matcher[A] = new Matcher[A] {
-    override val whereSql: String = s"${index.name} < ${index.dbType.literal(v)}"
-    override def apply(item: A): Boolean = implicitly[Ordering[B]].compare(v, index(item)) < 0
+    override val whereSql: String = s"${index.name} < ?"
+    override val whereArgs = Seq(index.dbType.arg(v))
+    override def apply(item: A): Boolean = implicitly[Ordering[B]].lt(index(item), v)
+  }
+
+  def greater[A, B: Ordering](index: Index[A, B])(v: B): Matcher[A] = new Matcher[A] {
+    override val whereSql: String = s"${index.name} > ?"
+    override val whereArgs = Seq(index.dbType.arg(v))
+    override def apply(item: A): Boolean = implicitly[Ordering[B]].gt(index(item), v)
+  }
+
+  /**
+   * Matches items with index value in range [from, to] (inclusive).
+   */
+  def between[A, B: Ordering](index: Index[A, B])(from: B, to: B): Matcher[A] = new Matcher[A] {
+    override val whereSql: String = s"${index.name} BETWEEN ? AND ?"
+    override val whereArgs = Seq(index.dbType.arg(from), index.dbType.arg(to))
+    override def apply(item: A): Boolean = {
+      val v = index(item)
+      implicitly[Ordering[B]].gteq(v, from) && implicitly[Ordering[B]].lteq(v, to)
+    }
   }
 
-  def in[A, B](index: Index[A, B])(v: Set[B]): Matcher[A] = new Matcher[A] {
-    override val whereSql: String = s"${index.name} in (${v.map(index.dbType.literal).mkString(",")})"
-    override def apply(item: A): Boolean = v(index(item))
+  def in[A, B](index: Index[A, B])(v: Set[B]): Matcher[A] = new ValuesMatcher(index, v)
+
+  /**
+   * Full text search on one of `dao.table.searchIndexes`, every word from query is matched as a prefix (search as you type).
+   * Query without any words matches nothing.
+   */
+  def search[A](dao: Dao[_, A], index: Index[A, String])(query: String): Matcher[A] = new Matcher[A] {
+    private val terms = searchTerms(query)
+    override val whereSql: String =
+      if (terms.isEmpty) "0 = 1"
+      else s"rowid IN (SELECT docid FROM ${dao.table.searchTable} WHERE ${index.name} MATCH ?)"
+    override val whereArgs = if (terms.isEmpty) Nil else Seq(terms.map(_ + "*").mkString(" "))
+    override def apply(item: A): Boolean = terms.nonEmpty && {
+      val words = searchTerms(index(item))
+      terms forall { t => words.exists(_.startsWith(t)) }
+    }
   }
+
+  private def searchTerms(str: String): Seq[String] =
+    if (str == null) Nil else str.toLowerCase.split("[\\s\\p{Punct}]+").filter(_.nonEmpty).toSeq
 }
 
 abstract class Dao[I: Id, A: JsonDecoder : JsonEncoder] {
   import Dao._
 
-  private val decoder = implicitly[JsonDecoder[A]]
-  private val encoder = implicitly[JsonEncoder[A]]
   private val _id = implicitly[Id[I]]
 
+  /**
+   * Codec used for data column, rows are saved as JSON text by default.
+   */
+  lazy val codec: RowCodec[A] = RowCodec.json[A]
+
   private val DataIndex = 1
 
+  /**
+   * Minimal number of rows for which `list` decodes them in parallel, can be lowered for expensive codecs.
+   */
+  protected val parallelDecodeThreshold = ParallelDecodeThreshold
+
   lazy val IdIndex = new Index[A, I]("_id", {_ => null.asInstanceOf[I] })(new DbType[I] with Text {
     override def literal(v: I): String = s"'${_id.encode(v)}'"
+    override def arg(v: I): String = _id.encode(v)
     override def bind(stmt: SQLiteProgram, pos: Int, v: I): Unit = stmt.bindString(pos, _id.encode(v))
+    override def read(c: Cursor, index: Int): I = _id.decode(c.getString(index))
   })
 
   val table: Table
   def getId(v: A): I
 
-  case class Table(name: String, indexes: Seq[Index[A, _]])
+  /**
+   * @param searchIndexes - text columns indexed in full text search table, used by `Matcher.search`
+   */
+  case class Table(name: String, indexes: Seq[Index[A, _]], searchIndexes: Seq[Index[A, String]] = Nil) {
+    def searchTable = s"${name}_fts"
+  }
 
   lazy val createTableSql = {
     val indexesSql = if (table.indexes.isEmpty) "" else table.indexes.map(_.createTableSql).mkString(", ", ", ", "")
@@ -128,6 +212,17 @@ abstract class Dao[I: Id, A: JsonDecoder : JsonEncoder] {
 
   lazy val deleteSql = s"DELETE FROM ${table.name} WHERE _id = ?"
 
+  /**
+   * Search table rows are linked to table rows by rowid (docid), they are updated on every insert and delete done with this dao.
+   */
+  lazy val createSearchTableSql: Option[String] =
+    if (table.searchIndexes.isEmpty) None
+    else Some(s"CREATE VIRTUAL TABLE IF NOT EXISTS ${table.searchTable} USING $FtsModule(${table.searchIndexes.map(_.name).mkString(", ")})")
+  lazy val dropSearchTableSql = s"DROP TABLE IF EXISTS ${table.searchTable}"
+
+  private lazy val insertSearchSql = s"INSERT INTO ${table.searchTable} (docid, ${table.searchIndexes.map(_.name).mkString(", ")}) VALUES (${Seq.fill(table.searchIndexes.size + 1)("?").mkString(", ")})"
+  private lazy val deleteSearchSql = s"DELETE FROM ${table.searchTable} WHERE docid IN (SELECT rowid FROM ${table.name} WHERE _id = ?)"
+
   private lazy val insertSql = {
     if (table.indexes.isEmpty) s"INTO ${table.name} (_id, _data) VALUES (?, ?)"
     else s"INTO ${table.name} (_id, _data ${table.indexes.map(_.name).mkString(", ", ", ", "")}) VALUES (${Seq.fill(table.indexes.size + 2)("?").mkString(", ")})"
@@ -137,31 +232,120 @@ abstract class Dao[I: Id, A: JsonDecoder : JsonEncoder] {
 
   def decodeId(c: Cursor) = _id.decode(c.getString(0))
 
-  def decode(c: Cursor) = decoder(c.getString(DataIndex))
+  def decode(c: Cursor) = codec.decode(RowData(c, DataIndex))
 
   def single(c: Cursor) = try {
     if (c.moveToFirst()) Some(decode(c)) else None
   } finally c.close()
 
-  def list(c: Cursor) = try {
-    val builder = Seq.newBuilder[A]
-    while (c.moveToNext()) builder += decode(c)
+  /**
+   * Decodes all rows, large results are decoded on multiple cores (raw data is still read from cursor in order).
+   */
+  def list(c: Cursor): Seq[A] = try {
+    if (DecodeThreads > 1 && c.getCount >= parallelDecodeThreshold) {
+      val rows = Vector.newBuilder[RowData]
+      while (c.moveToNext()) rows += RowData(c, DataIndex)
+      decodeParallel(rows.result())(codec.decode)
+    } else {
+      val builder = Seq.newBuilder[A]
+      while (c.moveToNext()) builder += decode(c)
+      builder.result()
+    }
+  } finally c.close()
+
+  /**
+   * Decodes rows one at a time, cursor is closed once all rows are consumed.
+   */
+  def foreach(c: Cursor)(f: A => Unit): Unit = try {
+    while (c.moveToNext()) f(decode(c))
+  } finally c.close()
+
+  /**
+   * Lazily decoding iterator, closes cursor once last row is read, has to be closed explicitly if not fully consumed.
+   */
+  def iterate(c: Cursor): CursorIterator[A] = new CursorIterator(c, decode)
+
+  /**
+   * Rows with data decoded on first access, for callers that usually need only ids.
+   */
+  def lazyRows(matcher: Matcher[A])(implicit db: SQLiteDatabase): Seq[LazyRow[I, A]] =
+    collect(db.query(table.name, Array("_id", "_data"), matcher.whereSql, selectionArgs(matcher.whereArgs), null, null, null)) { c =>
+      new LazyRow(decodeId(c), RowData(c, DataIndex), codec)
+    }
+
+  /**
+   * Reads only id and given index column of matching rows, data column is not loaded nor decoded.
+   */
+  def project[B](index: Index[A, B], matcher: Matcher[A])(implicit db: SQLiteDatabase): Seq[(I, B)] =
+    collect(db.query(table.name, Array("_id", index.name), matcher.whereSql, selectionArgs(matcher.whereArgs), null, null, null)) { c =>
+      (decodeId(c), index.dbType.read(c, 1))
+    }
+
+  def project[B, C](index1: Index[A, B], index2: Index[A, C], matcher: Matcher[A])(implicit db: SQLiteDatabase): Seq[(I, B, C)] =
+    collect(db.query(table.name, Array("_id", index1.name, index2.name), matcher.whereSql, selectionArgs(matcher.whereArgs), null, null, null)) { c =>
+      (decodeId(c), index1.dbType.read(c, 1), index2.dbType.read(c, 2))
+    }
+
+  private def collect[T](c: Cursor)(read: Cursor => T): Seq[T] = try {
+    val builder = Seq.newBuilder[T]
+    while (c.moveToNext()) builder += read(c)
     builder.result()
   } finally c.close()
 
   def get(id: I)(implicit db: SQLiteDatabase): Option[A] =
     single(db.query(table.name, null, "_id = ?", Array(_id.encode(id)), null, null, null))
 
+  /**
+   * Loads items with given ids, using single query for every `MaxBindArgs` ids.
+   * @return loaded (id, item) pairs, ids missing in db are skipped
+   */
+  def getAll(ids: Traversable[I])(implicit db: SQLiteDatabase): Seq[(I, A)] =
+    ids.toVector.distinct.grouped(MaxBindArgs).flatMap { group =>
+      val c = db.query(table.name, null, s"_id IN (${Seq.fill(group.size)("?").mkString(", ")})", group.map(_id.encode).toArray, null, null, null)
+      try {
+        val builder = Seq.newBuilder[(I, A)]
+        while (c.moveToNext()) builder += (decodeId(c) -> decode(c))
+        builder.result()
+      } finally c.close()
+    } .toVector
+
   def list(implicit db: SQLiteDatabase): Seq[A] = list(db.query(table.name, null, null, null, null, null, null))
 
-  def query[K](ind: Index[A, K], value: K)(implicit db: SQLiteDatabase): Cursor =
-    db.query(table.name, null, s"${ind.name} = ${ind.dbType.literal(value)}", null, null, null, null)
+  def query[K](ind: Index[A, K], value: K)(implicit db: SQLiteDatabase): Cursor = query(Matcher.equal(ind)(value))
+
+  def query(matcher: Matcher[A])(implicit db: SQLiteDatabase): Cursor = query(matcher.whereSql, matcher.whereArgs)
+
+  def query(whereSql: String, whereArgs: Seq[String] = Nil)(implicit db: SQLiteDatabase): Cursor =
+    db.query(table.name, null, whereSql, selectionArgs(whereArgs), null, null, null)
+
+  /**
+   * Keyset pagination over given index, matching rows are ordered by (index, _id).
+   * @param after - index value and id of last item on previous page
+   */
+  def page[B](index: Index[A, B], matcher: Matcher[A], after: Option[(B, I)], limit: Int)(implicit db: SQLiteDatabase): Seq[A] = {
+    val (whereSql, whereArgs) = after match {
+      case Some((value, id)) =>
+        val arg = index.dbType.arg(value)
+        (s"(${matcher.whereSql}) AND (${index.name} > ? OR (${index.name} = ? AND _id > ?))", matcher.whereArgs ++ Seq(arg, arg, _id.encode(id)))
+      case None =>
+        (matcher.whereSql, matcher.whereArgs)
+    }
+    list(db.query(table.name, null, whereSql, selectionArgs(whereArgs), null, null, s"${index.name}, _id", limit.toString))
+  }
+
+  /**
+   * First `limit` rows matching given matcher, ordered by index (and _id for equal values).
+   * Ordering and limit are executed by SQLite, using index created for that column.
+   */
+  def top[B](index: Index[A, B], matcher: Matcher[A], limit: Int, descending: Boolean = false)(implicit db: SQLiteDatabase): Seq[A] = {
+    val order = if (descending) "DESC" else "ASC"
+    list(db.query(table.name, null, matcher.whereSql, selectionArgs(matcher.whereArgs), null, null, s"${index.name} $order, _id $order", limit.toString))
+  }
 
-  def query(whereSql: String)(implicit db: SQLiteDatabase): Cursor =
-    db.query(table.name, null, whereSql, null, null, null, null)
+  def find(matcher: Matcher[A])(implicit db: SQLiteDatabase): Seq[I] = find(matcher.whereSql, matcher.whereArgs)
 
-  def find(whereSql: String)(implicit db: SQLiteDatabase): Seq[I] = {
-    val c = query(whereSql)
+  def find(whereSql: String, whereArgs: Seq[String] = Nil)(implicit db: SQLiteDatabase): Seq[I] = {
+    val c = query(whereSql, whereArgs)
     try {
       val builder = Seq.newBuilder[I]
       while (c.moveToNext()) builder += _id.decode(c.getString(0))
@@ -169,52 +353,243 @@ abstract class Dao[I: Id, A: JsonDecoder : JsonEncoder] {
     } finally c.close()
   }
 
-  def count(whereSql: String)(implicit db: SQLiteDatabase): Long =
-    db.compileStatement(s"select count(*) from ${table.name} where $whereSql;").simpleQueryForLong()
+  def count(matcher: Matcher[A])(implicit db: SQLiteDatabase): Long = count(matcher.whereSql, matcher.whereArgs)
+
+  def count(whereSql: String, whereArgs: Seq[String] = Nil)(implicit db: SQLiteDatabase): Long =
+    withStatement(s"select count(*) from ${table.name} where $whereSql;") { stmt =>
+      bindArgs(stmt, whereArgs)
+      stmt.simpleQueryForLong()
+    }
 
   def insert(item: A)(implicit db: SQLiteDatabase): A = {
     insert(Seq(item))
     item
   }
 
-  def delete(id: I)(implicit db: SQLiteDatabase) = db.delete(table.name, "_id = ?", Array(_id.encode(id)))
+  def delete(id: I)(implicit db: SQLiteDatabase) = inTransaction {
+    if (table.searchIndexes.nonEmpty) withStatement(deleteSearchSql) { deleteSearch(_, id) }
+    db.delete(table.name, "_id = ?", Array(_id.encode(id)))
+  }
 
   def deleteAll(ids: TraversableOnce[I])(implicit db: SQLiteDatabase): Unit = inTransaction {
     withStatement(deleteSql) { stmt =>
-      ids foreach { id =>
-        stmt.bindString(1, _id.encode(id))
-        stmt.execute()
+      if (table.searchIndexes.isEmpty) ids foreach { deleteRow(stmt, _) }
+      else withStatement(deleteSearchSql) { search =>
+        ids foreach { id =>
+          deleteSearch(search, id)
+          deleteRow(stmt, id)
+        }
       }
     }
   }
 
-  def insertOrIgnore(items: TraversableOnce[A])(implicit db: SQLiteDatabase): Unit = insertWith(insertOrIgnoreSql)(items)
+  private def deleteRow(stmt: SQLiteStatement, id: I): Unit = {
+    stmt.bindString(1, _id.encode(id))
+    stmt.execute()
+  }
 
-  def insert(items: TraversableOnce[A])(implicit db: SQLiteDatabase): Unit = insertWith(insertOrReplaceSql)(items)
+  private def deleteSearch(stmt: SQLiteStatement, id: I): Unit = deleteRow(stmt, id) // search delete is also bound by _id
 
-  private def insertWith(sql: String)(items: TraversableOnce[A])(implicit db: SQLiteDatabase): Unit = inTransaction {
+  def insertOrIgnore(items: TraversableOnce[A])(implicit db: SQLiteDatabase): Unit = insertWith(insertOrIgnoreSql, replace = false)(items)
+
+  def insert(items: TraversableOnce[A])(implicit db: SQLiteDatabase): Unit = insertWith(insertOrReplaceSql, replace = true)(items)
+
+  private def insertWith(sql: String, replace: Boolean)(items: TraversableOnce[A])(implicit db: SQLiteDatabase): Unit = inTransaction {
     withStatement(sql) { stmt =>
-      items foreach { item =>
-        stmt.bindString(1, _id.encode(getId(item)))
-        stmt.bindString(2, encoder(item))
-        table.indexes.zipWithIndex foreach { case (index, i) =>
-          index.bind(stmt, i + 3, item)
-        }
+      if (table.searchIndexes.isEmpty) items foreach { item =>
+        bindRow(stmt, item)
         stmt.execute()
+      } else withStatement(deleteSearchSql) { delete =>
+        withStatement(insertSearchSql) { insert =>
+          items foreach { item =>
+            if (replace) deleteSearch(delete, getId(item)) // has to be done before replacing row, as it changes rowid
+            bindRow(stmt, item)
+            val rowId = stmt.executeInsert()
+            if (rowId != -1) insertSearch(insert, rowId, item) // -1 if row was ignored
+          }
+        }
+      }
+    }
+  }
+
+  private def bindRow(stmt: SQLiteStatement, item: A, offset: Int = 0): Unit = {
+    stmt.bindString(offset + 1, _id.encode(getId(item)))
+    codec.bind(stmt, offset + 2, item)
+    table.indexes.zipWithIndex foreach { case (index, i) =>
+      index.bind(stmt, offset + i + 3, item)
+    }
+  }
+
+  private def bulkInsertSql(rows: Int) = {
+    val values = Seq.fill(table.indexes.size + 2)("?").mkString("(", ", ", ")")
+    s"INSERT OR REPLACE INTO ${table.name} (${("_id" +: "_data" +: table.indexes.map(_.name)).mkString(", ")}) VALUES ${Seq.fill(rows)(values).mkString(", ")}"
+  }
+
+  /**
+   * Fast path for importing large number of items (replacing existing ones), input is consumed in chunks.
+   * Table indexes are dropped for the time of import and rebuilt at the end, rows are inserted with multi-row statements,
+   * and db is synced less often. Has to be executed outside of transaction, every chunk is committed separately.
+   * Concurrent reads see partially imported data, and queries on this table are not using indexes until import is finished
+   * (`CachedStorage` queries wait for running import, direct `Storage.read` users have to do the same).
+   * @param progress - called with number of items imported so far, after every committed chunk
+   * @return number of imported items
+   */
+  def bulkImport(items: TraversableOnce[A], progress: Int => Unit = { _ => () })(implicit db: SQLiteDatabase): Int = {
+    val columns = table.indexes.size + 2
+    val rowsPerStatement = if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) 1 else math.min(MaxBindArgs / columns, MaxCompoundRows) // multi-row VALUES needs SQLite 3.7.11
+    val synchronous = DatabaseUtils.longForQuery(db, "PRAGMA synchronous", null)
+    db.execSQL("PRAGMA synchronous = OFF")
+    inTransaction {
+      setImportMarker(table.name)
+      table.indexes foreach { index => db.execSQL(index.dropIndexSql(table.name)) }
+    }
+    try {
+      var count = 0
+      items.toIterator.grouped(BulkImportChunk) foreach { chunk =>
+        inTransaction {
+          chunk.grouped(rowsPerStatement) foreach { rows =>
+            withStatement(bulkInsertSql(rows.size)) { stmt =>
+              rows.zipWithIndex foreach { case (item, i) => bindRow(stmt, item, i * columns) }
+              stmt.execute()
+            }
+          }
+        }
+        count += chunk.size
+        progress(count)
+      }
+      count
+    } finally {
+      finishImport()
+      db.execSQL(s"PRAGMA synchronous = $synchronous")
+    }
+  }
+
+  private def finishImport()(implicit db: SQLiteDatabase): Unit = inTransaction {
+    table.indexes foreach { index => db.execSQL(index.createIndexSql(table.name)) }
+    if (table.searchIndexes.nonEmpty) rebuildSearchIndex() // search table is not updated during import
+    clearImportMarker(table.name)
+  }
+
+  /**
+   * Recreates indexes and search table after bulk import interrupted by process death, called when db is opened.
+   */
+  def finishInterruptedImport(implicit db: SQLiteDatabase): Unit =
+    if (importMarked(table.name)) {
+      warn(s"finishing interrupted bulk import of ${table.name}")
+      finishImport()
+    }
+
+  private def insertSearch(stmt: SQLiteStatement, rowId: Long, item: A): Unit = {
+    stmt.bindLong(1, rowId)
+    table.searchIndexes.zipWithIndex foreach { case (index, i) =>
+      Option(index(item)).fold(stmt.bindNull(i + 2))(stmt.bindString(i + 2, _))
+    }
+    stmt.execute()
+  }
+
+  /**
+   * Adds columns (and sql indexes) for table indexes missing in existing table, and fills them by saving all rows again.
+   */
+  def addMissingIndexes(implicit db: SQLiteDatabase): Unit = {
+    val columns = collect(db.rawQuery(s"PRAGMA table_info(${table.name})", null)) { c => c.getString(c.getColumnIndex("name")) }.toSet
+    val missing = table.indexes.filterNot(index => columns(index.name))
+    if (columns.nonEmpty && missing.nonEmpty) inTransaction {
+      missing foreach { index =>
+        db.execSQL(s"ALTER TABLE ${table.name} ADD COLUMN ${index.createTableSql}")
+        db.execSQL(index.createIndexSql(table.name))
+      }
+      insert(list(db))
+    }
+  }
+
+  /**
+   * Recreates search table from current table content.
+   */
+  def rebuildSearchIndex()(implicit db: SQLiteDatabase): Unit = inTransaction {
+    db.execSQL(dropSearchTableSql)
+    createSearchTableSql foreach { sql =>
+      db.execSQL(sql)
+      withStatement(insertSearchSql) { stmt =>
+        val c = db.query(table.name, Array("rowid", "_data"), null, null, null, null, null) // data at DataIndex
+        try {
+          while (c.moveToNext()) insertSearch(stmt, c.getLong(0), decode(c))
+        } finally c.close()
       }
     }
   }
+
+  /**
+   * Creates (or rebuilds) search table for existing databases, needs to be included in app db migrations
+   * whenever `table.searchIndexes` change.
+   */
+  def addSearchIndex(from: Int, to: Int) = Migration(from, to) { rebuildSearchIndex()(_) }
+
+  /**
+   * Adds columns for indexes missing in existing table and rewrites all rows to fill them, needs to be included in app db migrations
+   * whenever `table.indexes` change. Columns already present are skipped, so it's safe to run on tables created by current version.
+   */
+  def addIndexes(from: Int, to: Int) = Migration(from, to) { addMissingIndexes(_) }
 }
 
 object Dao {
+  private implicit val tag: LogTag = "Dao"
 
-  def inTransaction[A](body: => A)(implicit db: SQLiteDatabase): A = Storage.inTransaction(body)
+  // SQLITE_MAX_VARIABLE_NUMBER
+  val MaxBindArgs = 999
 
-  def withStatement[A](sql: String)(body: SQLiteStatement => A)(implicit db: SQLiteDatabase): A = {
-    val stmt = db.compileStatement(sql)
-    try {
-      body(stmt)
-    } finally
-      stmt.close()
+  val ParallelDecodeThreshold = 1000
+
+  // SQLITE_MAX_COMPOUND_SELECT, also limits number of rows in VALUES clause
+  val MaxCompoundRows = 500
+
+  val BulkImportChunk = 5000
+
+  // tables with bulk import in progress, so that their indexes can be restored if import is interrupted
+  private val ImportsTable = "BulkImports"
+
+  private def setImportMarker(table: String)(implicit db: SQLiteDatabase): Unit = {
+    db.execSQL(s"CREATE TABLE IF NOT EXISTS $ImportsTable (name TEXT PRIMARY KEY)")
+    db.execSQL(s"INSERT OR REPLACE INTO $ImportsTable (name) VALUES (?)", Array[AnyRef](table))
   }
+
+  private def clearImportMarker(table: String)(implicit db: SQLiteDatabase): Unit =
+    db.delete(ImportsTable, "name = ?", Array(table))
+
+  private def importMarked(table: String)(implicit db: SQLiteDatabase): Boolean =
+    DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = ?", Array(ImportsTable)) > 0 &&
+      DatabaseUtils.longForQuery(db, s"SELECT count(*) FROM $ImportsTable WHERE name = ?", Array(table)) > 0
+
+  private val MinDecodeChunk = 100
+
+  lazy val DecodeThreads = Runtime.getRuntime.availableProcessors()
+
+  private lazy val decodePool = ExecutionContext.fromExecutorService(new ForkJoinPool(DecodeThreads))
+
+  /**
+   * Decodes rows in chunks on fork-join pool, first chunk is decoded on calling thread. Result keeps rows order.
+   */
+  private[db] def decodeParallel[A](rows: IndexedSeq[RowData])(decode: RowData => A): Seq[A] =
+    if (rows.isEmpty) Nil
+    else {
+      val chunks = rows.grouped(math.max(MinDecodeChunk, rows.size / DecodeThreads + 1)).toVector
+      val decoded = chunks.tail map { chunk => Future(chunk map decode)(decodePool) }
+      val first = chunks.head map decode
+      first ++ decoded.flatMap(Await.result(_, Duration.Inf))
+    }
+
+  // FTS4 is only available since SQLite 3.7.4
+  lazy val FtsModule = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) "fts4" else "fts3"
+
+  def inTransaction[A](body: => A)(implicit db: SQLiteDatabase): A = Storage.inTransaction(body)
+
+  def selectionArgs(args: Seq[String]): Array[String] = if (args.isEmpty) null else args.toArray
+
+  def bindArgs(stmt: SQLiteProgram, args: Seq[String]): Unit =
+    args.zipWithIndex foreach { case (arg, i) => stmt.bindString(i + 1, arg) }
+
+  /**
+   * Executes body with statement compiled for given db connection, statements are cached and reused.
+   */
+  def withStatement[A](sql: String)(body: SQLiteStatement => A)(implicit db: SQLiteDatabase): A =
+    StatementCache(db).withStatement(sql)(body)
 }
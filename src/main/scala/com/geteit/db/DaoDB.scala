@@ -9,6 +9,8 @@ trait DaoDB { self: SQLiteOpenHelper =>
   val daos: Seq[Dao[_, _]]
   val migrations: Seq[Migration]
 
+  def onlineMigrations: Seq[OnlineMigration[_, _]] = migrations.flatMap(_.online)
+
   override def onCreate(db: SQLiteDatabase): Unit = {
     verbose(s"onCreate()")
     daos.foreach { dao =>
@@ -17,9 +19,17 @@ trait DaoDB { self: SQLiteOpenHelper =>
       dao.table.indexes foreach { index =>
         db.execSQL(index.createIndexSql(dao.table.name))
       }
+      dao.createSearchTableSql foreach { db.execSQL }
     }
   }
 
+  /**
+   * Restores indexes dropped by interrupted bulk import.
+   * Index columns added in new versions are not created here, app migrations have to include `Dao.addIndexes`.
+   */
+  override def onOpen(db: SQLiteDatabase): Unit =
+    if (!db.isReadOnly) daos foreach { _.finishInterruptedImport(db) }
+
   override def onUpgrade(db: SQLiteDatabase, from: Int, to: Int): Unit = {
     verbose(s"onUpgrade($from -> $to)")
     new Migrations(migrations: _*).migrate(this, from, to)(db)
@@ -31,5 +41,6 @@ trait DaoDB { self: SQLiteOpenHelper =>
       dao.table.indexes foreach { index =>
         db.execSQL(index.dropIndexSql(dao.table.name))
       }
+      db.execSQL(dao.dropSearchTableSql)
     }
 }
@@ -0,0 +1,92 @@
+package com.geteit.db
+
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.{LinkedBlockingQueue, ThreadFactory, ThreadPoolExecutor, TimeUnit}
+
+import android.content.res.Resources
+import android.os.{Build, Process}
+import com.geteit.util.Log._
+
+import scala.concurrent.ExecutionContextExecutor
+import scala.concurrent.duration._
+import scala.util.Try
+
+/**
+ * Fixed size executor for db operations, tasks are executed in submission order.
+ * Keeps track of queue depth and time tasks spend waiting in the queue.
+ * Db operations usually block UI (or work it waits for), so threads run close to default priority, not in background.
+ */
+class DbExecutor(name: String, val threads: Int, priority: Int = Process.THREAD_PRIORITY_DEFAULT) extends ExecutionContextExecutor {
+  import DbExecutor._
+
+  private val queued = new AtomicInteger(0)
+  private val active = new AtomicInteger(0)
+  private val executed = new AtomicLong(0)
+  private val totalWait = new AtomicLong(0)
+  private val maxWait = new AtomicLong(0)
+
+  private val executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue[Runnable], new ThreadFactory {
+    private val count = new AtomicInteger(0)
+    override def newThread(r: Runnable): Thread = new Thread(new Runnable {
+      override def run(): Unit = {
+        Process.setThreadPriority(priority)
+        r.run()
+      }
+    }, s"$name-${count.incrementAndGet()}")
+  })
+  executor.allowCoreThreadTimeOut(true)
+
+  override def execute(runnable: Runnable): Unit = {
+    val enqueued = System.nanoTime()
+    queued.incrementAndGet()
+    executor.execute(new Runnable {
+      override def run(): Unit = {
+        queued.decrementAndGet()
+        active.incrementAndGet()
+        val waited = System.nanoTime() - enqueued
+        totalWait.addAndGet(waited)
+        if (waited > maxWait.get) maxWait.set(waited) // not atomic, good enough for stats
+        try runnable.run()
+        finally {
+          active.decrementAndGet()
+          executed.incrementAndGet()
+        }
+      }
+    })
+  }
+
+  override def reportFailure(cause: Throwable): Unit = error(s"$name task failed", cause)
+
+  def stats = {
+    val count = executed.get
+    ExecutorStats(queued.get, active.get, count, if (count == 0) Duration.Zero else (totalWait.get / count).nanos, maxWait.get.nanos)
+  }
+}
+
+/**
+ * @param queueDepth - tasks waiting for a thread
+ * @param active - tasks currently executing
+ * @param averageWait - average time spent in queue by executed tasks
+ */
+case class ExecutorStats(queueDepth: Int, active: Int, executed: Long, averageWait: FiniteDuration, maxWait: FiniteDuration)
+
+object DbExecutor {
+  private implicit val tag: LogTag = "DbExecutor"
+
+  /**
+   * Number of connections SQLite connection pool uses in WAL mode, one of them (primary) is reserved for writes.
+   */
+  lazy val ConnectionPoolSize =
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) 1
+    else {
+      val res = Resources.getSystem
+      Option(res.getIdentifier("db_connection_pool_size", "integer", "android")).filter(_ != 0).flatMap(id => Try(res.getInteger(id)).toOption).getOrElse(4)
+    }
+
+  lazy val ReadThreads = math.max(1, ConnectionPoolSize - 1)
+
+  /**
+   * Reads run slightly below default, so that many concurrent reads don't slow down the single write thread.
+   */
+  val ReadPriority = Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_LESS_FAVORABLE
+}
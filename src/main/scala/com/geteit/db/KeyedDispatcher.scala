@@ -0,0 +1,44 @@
+package com.geteit.db
+
+import java.util.concurrent.ConcurrentHashMap
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * Routes changes only to listeners registered for changed key,
+ * dispatch cost depends on number of changed items, not on number of listeners.
+ */
+private[db] class KeyedDispatcher[K, A] {
+  private val listeners = new ConcurrentHashMap[K, Vector[Seq[A] => Unit]]
+
+  def subscribe(key: K)(f: Seq[A] => Unit): () => Unit = {
+    synchronized { listeners.put(key, Option(listeners.get(key)).getOrElse(Vector.empty) :+ f) }
+    () => unsubscribe(key, f)
+  }
+
+  def keys: Seq[K] = listeners.keySet().asScala.toVector
+
+  private def unsubscribe(key: K, f: Seq[A] => Unit): Unit = synchronized {
+    Option(listeners.get(key)) foreach { fs =>
+      val rest = fs.filterNot(_ eq f)
+      if (rest.isEmpty) listeners.remove(key) else listeners.put(key, rest)
+    }
+  }
+
+  /**
+   * Groups changes by key (keeping their order) and notifies listeners of every changed key once.
+   */
+  def dispatch(changes: Traversable[(K, A)]): Unit = if (!listeners.isEmpty) {
+    val byKey = new mutable.LinkedHashMap[K, mutable.Builder[A, Vector[A]]]
+    changes foreach { case (k, a) =>
+      if (listeners.containsKey(k)) byKey.getOrElseUpdate(k, Vector.newBuilder[A]) += a
+    }
+    byKey foreach { case (k, as) =>
+      Option(listeners.get(k)) foreach { fs =>
+        val events = as.result()
+        fs foreach { _(events) }
+      }
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package com.geteit.db
+
+import scala.collection.mutable
+
+/**
+ * In-memory mapping from index value to keys of all stored items.
+ * Index is complete only after `load` was called with all items from db.
+ */
+class MemoryIndex[K, V](val index: Index[V, _]) {
+  private val keyValues = new mutable.HashMap[K, Any]
+  private val valueKeys = new mutable.HashMap[Any, mutable.Set[K]] with mutable.MultiMap[Any, K]
+
+  private var changedWhileLoading = Option.empty[mutable.Set[K]]
+
+  def update(key: K, item: Option[V]): Unit = synchronized {
+    changedWhileLoading foreach { _ += key }
+    keyValues.remove(key) foreach { valueKeys.removeBinding(_, key) }
+    item foreach { v =>
+      val value = index(v)
+      keyValues.put(key, value)
+      valueKeys.addBinding(value, key)
+    }
+  }
+
+  def apply(values: Set[_]): Set[K] = synchronized {
+    values.flatMap { v => valueKeys.get(v).fold(Set.empty[K])(_.toSet) }
+  }
+
+  /**
+   * Starts tracking changed keys, they will be skipped by following `load` as their db state could be outdated.
+   */
+  def startLoading(): Unit = synchronized { changedWhileLoading = Some(mutable.Set.empty) }
+
+  def load(items: Traversable[(K, V)]): Unit = synchronized {
+    val changed = changedWhileLoading.getOrElse(Set.empty[K])
+    items foreach { case (key, item) =>
+      if (!changed(key) && !keyValues.contains(key)) { // keys already in index were added by update, which is newer than db
+        val value = index(item)
+        keyValues.put(key, value)
+        valueKeys.addBinding(value, key)
+      }
+    }
+    changedWhileLoading = None
+  }
+
+  def size = synchronized { keyValues.size }
+}
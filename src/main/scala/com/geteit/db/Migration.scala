@@ -10,6 +10,11 @@ trait Migration { self =>
   val toVersion: Int
 
   def apply(db: SQLiteDatabase): Unit
+
+  /**
+   * Data rewrites executed in background after blocking part of migration.
+   */
+  def online: Seq[OnlineMigration[_, _]] = Nil
 }
 
 object Migration {
@@ -23,6 +28,17 @@ object Migration {
   }
 
   def to(to: Int)(migrate: SQLiteDatabase => Unit): Migration = apply(AnyVersion, to)(migrate)
+
+  /**
+   * Migration with schema changes executed in `onUpgrade` and data rewrites executed later, in background.
+   */
+  def online(from: Int, to: Int, steps: OnlineMigration[_, _]*)(schema: SQLiteDatabase => Unit = { _ => () }): Migration = new Migration {
+    override val toVersion = to
+    override val fromVersion = from
+    override val online = steps
+
+    override def apply(db: SQLiteDatabase): Unit = schema(db)
+  }
 }
 
 /**
@@ -69,6 +85,7 @@ class Migrations(migrations: Migration*) {
           try {
             db.beginTransaction()
             ms.foreach(_.apply(db))
+            ms.flatMap(_.online) foreach { m => OnlineMigration.schedule(m.name) }
             db.setTransactionSuccessful()
           } catch {
             case NonFatal(e) =>
@@ -85,6 +102,7 @@ class Migrations(migrations: Migration*) {
   def fallback(storage: DaoDB, db: SQLiteDatabase): Unit = {
     warn(s"Dropping all data for $storage.")
     storage.dropAllTables(db)
+    OnlineMigration.clear(db)
     storage.onCreate(db)
   }
 }
@@ -0,0 +1,94 @@
+package com.geteit.db
+
+import android.database.sqlite.SQLiteDatabase
+import com.geteit.util.Log._
+import com.geteit.util.returning
+
+import scala.concurrent.Future
+
+/**
+ * Re-encoding of rows executed in background after db is opened, instead of blocking `onUpgrade`.
+ * Rows are processed in `_id` order, `chunkSize` rows in single transaction, progress is saved with every chunk
+ * so migration continues where it stopped after app restart.
+ * Items are saved unchanged, with current codec and indexes, so rows have to stay readable in both old and new format
+ * (like with `BinaryRowCodec`), as they are accessed while migration is running.
+ * Item content can't be changed here: CachedStorage could still hold (and save again) old version of migrated item,
+ * content changes have to be done in `onUpgrade`, before any storage is used.
+ */
+class OnlineMigration[I, A](val name: String, dao: Dao[I, A], chunkSize: Int = OnlineMigration.DefaultChunkSize) {
+
+  /**
+   * @return last migrated id, None if there are no more rows
+   */
+  private[db] def migrateChunk(after: Option[String])(implicit db: SQLiteDatabase): Option[String] = {
+    val (where, args) = after.fold(("1 = 1", Seq.empty[String])) { id => ("_id > ?", Seq(id)) }
+    val items = dao.list(db.query(dao.table.name, null, where, Dao.selectionArgs(args), null, null, "_id", chunkSize.toString))
+    dao.insert(items)
+    if (items.size < chunkSize) None else Some(dao.IdIndex.dbType.arg(dao.getId(items.last)))
+  }
+}
+
+object OnlineMigration {
+  private implicit val tag: LogTag = "OnlineMigration"
+
+  val DefaultChunkSize = 500
+
+  private val TableName = "OnlineMigrations"
+
+  private def createTable(db: SQLiteDatabase) = db.execSQL(s"CREATE TABLE IF NOT EXISTS $TableName (name TEXT PRIMARY KEY, cursor TEXT)")
+
+  /**
+   * Records migration to be executed in background, called from `Migrations.migrate`.
+   */
+  private[db] def schedule(name: String)(implicit db: SQLiteDatabase): Unit = {
+    createTable(db)
+    db.execSQL(s"INSERT OR REPLACE INTO $TableName (name, cursor) VALUES (?, NULL)", Array[AnyRef](name))
+  }
+
+  private[db] def pending(implicit db: SQLiteDatabase): Seq[(String, Option[String])] = {
+    createTable(db)
+    val c = db.query(TableName, Array("name", "cursor"), null, null, null, null, "rowid")
+    try {
+      val builder = Seq.newBuilder[(String, Option[String])]
+      while (c.moveToNext()) builder += (c.getString(0) -> Option(c.getString(1)))
+      builder.result()
+    } finally c.close()
+  }
+
+  private def saveProgress(name: String, cursor: Option[String])(implicit db: SQLiteDatabase): Unit = cursor match {
+    case Some(id) => db.execSQL(s"UPDATE $TableName SET cursor = ? WHERE name = ?", Array[AnyRef](id, name))
+    case None => db.delete(TableName, "name = ?", Array(name))
+  }
+
+  def clear(db: SQLiteDatabase): Unit = db.execSQL(s"DROP TABLE IF EXISTS $TableName")
+
+  /**
+   * Runs pending migrations one chunk at a time, every chunk is separate write, so other writes are not blocked for long.
+   */
+  def resume(storage: Storage, migrations: Seq[OnlineMigration[_, _]]): Future[Unit] = {
+    import storage.ec
+    val byName = migrations.map(m => m.name -> m).toMap
+
+    def run(m: OnlineMigration[_, _], cursor: Option[String]): Future[Unit] =
+      storage { implicit db => returning(m.migrateChunk(cursor)) { saveProgress(m.name, _) } } flatMap {
+        case None =>
+          verbose(s"${m.name} completed")
+          Future.successful(())
+        case next => run(m, next)
+      }
+
+    storage { pending(_) } flatMap { ms =>
+      ms.foldLeft(Future.successful(())) { case (prev, (name, cursor)) =>
+        byName.get(name).fold {
+          warn(s"unknown online migration: $name")
+          prev
+        } { m =>
+          prev flatMap { _ =>
+            verbose(s"running $name, from: $cursor")
+            run(m, cursor)
+          }
+        }
+      }
+    }
+  }
+}
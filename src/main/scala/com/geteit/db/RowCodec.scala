@@ -0,0 +1,123 @@
+package com.geteit.db
+
+import java.io._
+
+import android.annotation.TargetApi
+import android.database.Cursor
+import android.database.sqlite.SQLiteProgram
+import android.os.Build
+import com.geteit.json.{JsonDecoder, JsonEncoder}
+
+import scala.util.Try
+
+/**
+ * Raw content of row data column. Single table can contain rows saved with different codecs.
+ */
+sealed trait RowData
+
+object RowData {
+  case class TextData(str: String) extends RowData
+  case class BlobData(bytes: Array[Byte]) extends RowData
+
+  @TargetApi(11)
+  def apply(c: Cursor, index: Int): RowData =
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+      if (c.getType(index) == Cursor.FIELD_TYPE_BLOB) BlobData(c.getBlob(index)) else TextData(c.getString(index))
+    } else Try[RowData](TextData(c.getString(index))).getOrElse(BlobData(c.getBlob(index)))
+}
+
+/**
+ * Row with data decoded on first access.
+ */
+class LazyRow[I, A](val id: I, data: RowData, codec: RowCodec[A]) {
+  lazy val item: A = codec.decode(data)
+}
+
+/**
+ * Encodes items stored in Dao data column.
+ */
+trait RowCodec[A] {
+  def bind(stmt: SQLiteProgram, pos: Int, item: A): Unit
+  def decode(data: RowData): A
+}
+
+object RowCodec {
+  def json[A: JsonDecoder : JsonEncoder]: RowCodec[A] = new JsonRowCodec[A]
+}
+
+class JsonRowCodec[A](implicit decoder: JsonDecoder[A], encoder: JsonEncoder[A]) extends RowCodec[A] {
+  import RowData._
+
+  override def bind(stmt: SQLiteProgram, pos: Int, item: A): Unit = stmt.bindString(pos, encoder(item))
+
+  override def decode(data: RowData): A = data match {
+    case TextData(json) => decoder(json)
+    case BlobData(_) => throw new IllegalArgumentException("Binary row can not be decoded with json codec")
+  }
+}
+
+/**
+ * Compact binary codec, rows are saved as BLOB prefixed with codec version.
+ * Rows saved as JSON (or with older version) are still readable, and get migrated when they are written again.
+ */
+abstract class BinaryRowCodec[A](val version: Byte)(implicit jsonDecoder: JsonDecoder[A]) extends RowCodec[A] {
+  import RowData._
+
+  protected def write(item: A, out: DataOutputStream): Unit
+
+  protected def read(in: DataInputStream): A
+
+  /**
+   * Reads rows saved with previous codec versions.
+   */
+  protected def readVersion(version: Byte, in: DataInputStream): A = throw new IllegalArgumentException(s"Unsupported row version: $version, current: ${this.version}")
+
+  def encode(item: A): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream(128)
+    val out = new DataOutputStream(bytes)
+    out.writeByte(version)
+    write(item, out)
+    out.flush()
+    bytes.toByteArray
+  }
+
+  override def bind(stmt: SQLiteProgram, pos: Int, item: A): Unit = stmt.bindBlob(pos, encode(item))
+
+  override def decode(data: RowData): A = data match {
+    case TextData(json) => jsonDecoder(json)
+    case BlobData(bytes) =>
+      val in = new DataInputStream(new ByteArrayInputStream(bytes))
+      in.readByte() match {
+        case `version` => read(in)
+        case v => readVersion(v, in)
+      }
+  }
+}
+
+object BinaryRowCodec {
+
+  def writeString(out: DataOutputStream, str: String): Unit = writeBytes(out, str.getBytes("utf8"))
+
+  def readString(in: DataInputStream): String = new String(readBytes(in), "utf8")
+
+  def writeBytes(out: DataOutputStream, bytes: Array[Byte]): Unit = {
+    out.writeInt(bytes.length)
+    out.write(bytes)
+  }
+
+  def readBytes(in: DataInputStream): Array[Byte] = {
+    val bytes = new Array[Byte](in.readInt())
+    in.readFully(bytes)
+    bytes
+  }
+
+  def writeOption[A](out: DataOutputStream, opt: Option[A])(write: A => Unit): Unit = opt match {
+    case Some(v) =>
+      out.writeBoolean(true)
+      write(v)
+    case None =>
+      out.writeBoolean(false)
+  }
+
+  def readOption[A](in: DataInputStream)(read: => A): Option[A] = if (in.readBoolean()) Some(read) else None
+}
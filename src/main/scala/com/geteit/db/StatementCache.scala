@@ -0,0 +1,90 @@
+package com.geteit.db
+
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentLinkedQueue}
+
+import android.database.sqlite.{SQLiteDatabase, SQLiteStatement}
+import com.geteit.util.Log._
+import com.geteit.util.returning
+
+import scala.util.Try
+
+/**
+ * Keeps compiled statements for single database connection, keyed by sql.
+ * Statement is borrowed by one thread at a time, so there is no concurrent access to it.
+ */
+class StatementCache(db: SQLiteDatabase) {
+  import StatementCache._
+
+  private val statements = new ConcurrentHashMap[String, ConcurrentLinkedQueue[SQLiteStatement]]
+  @volatile private var closed = false
+
+  def withStatement[A](sql: String)(body: SQLiteStatement => A): A = {
+    val stmt = borrow(sql)
+    try body(stmt)
+    finally release(sql, stmt)
+  }
+
+  private def borrow(sql: String): SQLiteStatement =
+    Option(statements.get(sql)).flatMap(q => Option(q.poll())).getOrElse(db.compileStatement(sql))
+
+  private def release(sql: String, stmt: SQLiteStatement): Unit = {
+    stmt.clearBindings()
+    val queue = if (closed) None else Option(statements.get(sql)) orElse {
+      if (statements.size >= MaxStatements) None // don't cache queries with literal values forever
+      else {
+        statements.putIfAbsent(sql, new ConcurrentLinkedQueue[SQLiteStatement])
+        Option(statements.get(sql))
+      }
+    }
+    queue match {
+      case Some(q) =>
+        q.offer(stmt)
+        if (closed && q.remove(stmt)) stmt.close() // cache closed in meantime
+      case None => stmt.close()
+    }
+  }
+
+  def close(): Unit = {
+    closed = true
+    val it = statements.values().iterator()
+    while (it.hasNext) {
+      val q = it.next()
+      Iterator.continually(q.poll()).takeWhile(_ != null) foreach { stmt => Try(stmt.close()) }
+    }
+    statements.clear()
+  }
+}
+
+object StatementCache {
+  private implicit val tag: LogTag = "StatementCache"
+
+  val MaxStatements = 64
+
+  // entries are removed explicitly when db is closed, cache holds statements referencing db, so weak keys would never be cleared
+  private val caches = new java.util.HashMap[SQLiteDatabase, StatementCache]
+
+  def apply(db: SQLiteDatabase): StatementCache = caches.synchronized {
+    Option(caches.get(db)).filterNot(_.closed) getOrElse {
+      removeClosed()
+      verbose(s"creating statement cache for: $db")
+      returning(new StatementCache(db)) { caches.put(db, _) }
+    }
+  }
+
+  // drops caches of databases closed without calling `close(db)` (like closing SQLiteOpenHelper directly)
+  private def removeClosed(): Unit = {
+    val it = caches.entrySet().iterator()
+    while (it.hasNext) {
+      val e = it.next()
+      if (!e.getKey.isOpen) {
+        it.remove()
+        e.getValue.close()
+      }
+    }
+  }
+
+  /**
+   * Closes all statements compiled for given database, has to be called before closing it.
+   */
+  def close(db: SQLiteDatabase): Unit = caches.synchronized { Option(caches.remove(db)) } foreach (_.close())
+}
@@ -1,35 +1,109 @@
 package com.geteit.db
 
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+
 import android.annotation.TargetApi
 import android.database.sqlite._
 import android.os.{CancellationSignal, Build}
-import com.geteit.concurrent.{Threading, LimitedExecutionContext}
 import com.geteit.util.Log._
 import com.geteit.util.returning
 
-import scala.concurrent.Future
-import scala.util.Try
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.util.{Failure, Try}
 
 trait Storage {
   import Storage._
-  implicit val ec = new LimitedExecutionContext(parent = Threading.io)
+
+  // writes are executed one at a time, reads use separate pool sized to SQLite connection pool, so they don't block inside framework
+  val writeExecutor = new DbExecutor("DbWrite", 1)
+  val readExecutor = new DbExecutor("DbRead", DbExecutor.ReadThreads, DbExecutor.ReadPriority)
+
+  implicit val ec: ExecutionContext = writeExecutor
 
   val dbHelper: SQLiteOpenHelper
 
-  private def getWritable = returning(dbHelper.getWritableDatabase)(transactions.enableWal)
-  private def getReadable = returning(dbHelper.getReadableDatabase)(transactions.enableWal)
+  @volatile private var opened = Set.empty[SQLiteDatabase]
+
+  private def getWritable = returning(dbHelper.getWritableDatabase)(onOpened)
+  private def getReadable = returning(dbHelper.getReadableDatabase)(onOpened)
+
+  private val onlineMigrationsStarted = new AtomicBoolean(false)
+
+  private def onOpened(db: SQLiteDatabase) = {
+    transactions.enableWal(db)
+    if (!opened(db)) synchronized { opened += db }
+    if (onlineMigrationsStarted.compareAndSet(false, true)) resumeOnlineMigrations()
+  }
+
+  // data rewrites left by upgrade (or interrupted by previous app run) are continued in background
+  private def resumeOnlineMigrations(): Unit = dbHelper match {
+    case daoDb: DaoDB if daoDb.onlineMigrations.nonEmpty =>
+      OnlineMigration.resume(this, daoDb.onlineMigrations) onFailure {
+        case e => error("online migration failed, will be resumed on next start", e)
+      }
+    case _ =>
+  }
 
-  def apply[A](f: SQLiteDatabase => A): Future[A] = Future {
-    implicit val db = getWritable
-    inTransaction(f(db))
+  private val pendingWrites = new ConcurrentLinkedQueue[PendingWrite[_]]
+  private val commitScheduled = new AtomicBoolean(false)
+
+  /**
+   * Executes write in transaction. Writes queued while previous commit is running are grouped into single transaction
+   * (one commit for all of them), every write runs in its own savepoint, so failed write is rolled back alone
+   * and doesn't affect the others. Returned future completes once the transaction is committed.
+   */
+  def apply[A](f: SQLiteDatabase => A): Future[A] = {
+    val write = new PendingWrite(f)
+    pendingWrites.offer(write)
+    if (commitScheduled.compareAndSet(false, true)) writeExecutor.execute(new Runnable {
+      override def run(): Unit = commitPending()
+    })
+    write.promise.future
+  }
+
+  private def commitPending(): Unit = {
+    commitScheduled.set(false) // writes queued from now on will schedule next commit
+    val writes = Iterator.continually(pendingWrites.poll()).takeWhile(_ != null).toVector
+    if (writes.nonEmpty) {
+      val results = try {
+        implicit val db = getWritable
+        if (writes.size == 1) Vector(Try(inTransaction(writes.head.run(db))))
+        else inTransaction { writes map { w => Try(withSavepoint(w.run(db))) } }
+      } catch {
+        case e: Throwable => Vector.fill(writes.size)(Failure(e))
+      }
+      writes.zip(results) foreach { case (w, res) => w.complete(res) } // completed after commit
+    }
   }
 
+  /**
+   * Imports items with `Dao.bulkImport`, executed on write thread after already queued writes.
+   * Table indexes are dropped while import is running, see `Dao.bulkImport` for concurrent reads.
+   */
+  def bulkImport[A](dao: Dao[_, A], items: TraversableOnce[A], progress: Int => Unit = { _ => () }): Future[Int] = Future {
+    dao.bulkImport(items, progress)(getWritable)
+  }
+
+  /**
+   * Collects writes to several daos and CachedStorages, they are saved in single transaction (one commit) on `commit()`.
+   */
+  def unitOfWork(): UnitOfWork = new UnitOfWork(this)
+
   def read[A](f: SQLiteDatabase => A): Future[A] = Future {
     implicit val db = getReadable
     inReadTransaction(f(db))
-  } (Threading.io)
+  } (readExecutor)
+
+  def readStats = readExecutor.stats
+
+  def writeStats = writeExecutor.stats
 
   def close() = Future {
+    synchronized {
+      opened foreach StatementCache.close
+      opened = Set.empty
+    }
     dbHelper.close()
   }
 }
@@ -37,6 +111,12 @@ trait Storage {
 object Storage {
   private implicit val tag: LogTag = "Storage"
 
+  private class PendingWrite[A](f: SQLiteDatabase => A) {
+    val promise = Promise[A]()
+    def run(db: SQLiteDatabase): Any = f(db)
+    def complete(result: Try[Any]): Unit = promise.tryComplete(result.asInstanceOf[Try[A]])
+  }
+
   private lazy val transactions = TransactionSupport()
 
   def inReadTransaction[A](body: => A)(implicit db: SQLiteDatabase): A = {
@@ -45,10 +125,30 @@ object Storage {
     finally db.endTransaction()
   }
 
-  def inTransaction[A](body: => A)(implicit db: SQLiteDatabase): A = {
-    transactions.beginTransaction(db)
-    try returning(body) { _ => db.setTransactionSuccessful() }
-    finally db.endTransaction()
+  /**
+   * Nested call runs in savepoint instead of nested transaction.
+   */
+  def inTransaction[A](body: => A)(implicit db: SQLiteDatabase): A =
+    if (db.inTransaction()) withSavepoint(body)
+    else {
+      transactions.beginTransaction(db)
+      try returning(body) { _ => db.setTransactionSuccessful() }
+      finally db.endTransaction()
+    }
+
+  /**
+   * Executes body in savepoint of current transaction, if it fails only its changes are rolled back.
+   * Failed nested `beginTransaction` would mark the whole outer transaction to roll back on Android, savepoint doesn't.
+   */
+  def withSavepoint[A](body: => A)(implicit db: SQLiteDatabase): A = {
+    db.execSQL("SAVEPOINT write")
+    try returning(body) { _ => db.execSQL("RELEASE write") }
+    catch {
+      case e: Throwable =>
+        db.execSQL(";ROLLBACK TO write") // leading ';' keeps framework from handling it as rollback of the whole transaction
+        db.execSQL("RELEASE write")
+        throw e
+    }
   }
 
   trait TransactionSupport {
@@ -0,0 +1,22 @@
+package com.geteit.db
+
+import com.geteit.util.GtObjHandler
+
+import scala.concurrent.duration.FiniteDuration
+
+/**
+ * Executes action on main looper at most once per `interval`, calls made in the meantime are folded into one.
+ * Without interval action is executed immediately, on calling thread.
+ */
+private[db] class ThrottledAction(interval: Option[FiniteDuration])(action: => Unit) {
+  private lazy val handler = new GtObjHandler[Unit]({ _ => action })
+
+  def apply(): Unit = interval match {
+    case None => action
+    case Some(delay) => synchronized {
+      if (!handler.hasMessages) handler.send((), delay.toMillis)
+    }
+  }
+
+  def cancel(): Unit = if (interval.isDefined) handler.removeAllMessages()
+}
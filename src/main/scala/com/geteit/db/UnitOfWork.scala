@@ -0,0 +1,55 @@
+package com.geteit.db
+
+import android.database.sqlite.SQLiteDatabase
+import com.geteit.concurrent.Threading
+import com.geteit.util.returning
+
+import scala.concurrent.{Future, Promise}
+
+/**
+ * Writes to several daos and CachedStorages collected and saved in single transaction (one commit).
+ * CachedStorage writes (see `CachedStorage.save(items, uow)`) update cache and send events only after that commit.
+ * Writes joined after `commit()` was called are saved on next commit.
+ */
+class UnitOfWork(storage: Storage) {
+  import Threading.global
+
+  // all state is guarded by this
+  private var writes = Vector.empty[Future[SQLiteDatabase => Unit]]
+  private var committed = Promise[Unit]()
+
+  def apply(write: SQLiteDatabase => Unit): this.type = {
+    join(Future.successful(write))
+    this
+  }
+
+  def insert[I, A](dao: Dao[I, A])(items: Seq[A]): this.type = apply { dao.insert(items)(_) }
+
+  def delete[I, A](dao: Dao[I, A])(ids: Seq[I]): this.type = apply { dao.deleteAll(ids)(_) }
+
+  /**
+   * Adds write which has to be prepared first, commit waits for it. Failed preparation fails the whole commit.
+   * @return future completed once the write is committed
+   */
+  def join(write: Future[SQLiteDatabase => Unit]): Future[Unit] = synchronized {
+    writes :+= write
+    committed.future
+  }
+
+  def isEmpty = synchronized { writes.isEmpty }
+
+  /**
+   * Saves all collected writes, returned future completes after single commit.
+   */
+  def commit(): Future[Unit] = {
+    val (ws, p) = synchronized {
+      returning((writes, committed)) { _ =>
+        writes = Vector.empty
+        committed = Promise[Unit]()
+      }
+    }
+    if (ws.isEmpty) p.trySuccess(())
+    else p.completeWith(Future.sequence(ws) flatMap { fs => storage { db => fs foreach { _(db) } } })
+    p.future
+  }
+}
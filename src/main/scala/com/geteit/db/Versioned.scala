@@ -0,0 +1,9 @@
+package com.geteit.db
+
+/**
+ * Value stored in CachedStorage which can be checked for changes without deep comparison,
+ * `version` has to change on every modification (for example incremented counter or content hash).
+ */
+trait Versioned {
+  def version: Long
+}
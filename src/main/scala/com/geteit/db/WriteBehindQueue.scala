@@ -0,0 +1,83 @@
+package com.geteit.db
+
+import com.geteit.concurrent.LimitedExecutionContext
+import com.geteit.util.GtObjHandler
+import com.geteit.util.Log._
+
+import scala.collection.mutable
+import scala.concurrent.duration.FiniteDuration
+import scala.concurrent.{Future, Promise}
+
+/**
+ * Coalesces db writes per key (last write wins, remove replaces pending add) and saves them in single transaction.
+ * Pending writes are saved `delay` after first of them was queued, or on explicit `flush()`.
+ */
+private[db] class WriteBehindQueue[K, V](storage: Storage, dao: Dao[K, V], delay: FiniteDuration) {
+  import WriteBehindQueue._
+  private implicit val dispatcher = new LimitedExecutionContext()
+
+  // all state is only accessed on dispatcher
+  private val pending = new mutable.LinkedHashMap[K, Option[V]] // None means remove
+  private val replacedAdds = new mutable.HashSet[K] // removed keys with dropped pending add, counted as deleted even if not in db yet
+  private var pendingSaved = Promise[Set[K]]() // completed with keys deleted by the flush
+  private var lastFlush = Future.successful(())
+  private var scheduled = false
+
+  private lazy val handler = new GtObjHandler[Unit]({ _ => flush() })
+
+  def save(values: Seq[V]): Future[Unit] = enqueue(values.map(v => dao.getId(v) -> Some(v))).map(_ => ())
+
+  /**
+   * @return number of rows deleted, known only once the flush containing this remove is committed
+   */
+  def remove(keys: Seq[K]): Future[Int] = enqueue(keys.map(_ -> None)) map { deleted => keys.distinct.count(deleted) }
+
+  private def enqueue(writes: Seq[(K, Option[V])]): Future[Set[K]] = Future {
+    writes foreach { case (k, v) =>
+      pending.remove(k) match {
+        case Some(Some(_)) if v.isEmpty => replacedAdds += k
+        case _ if v.isDefined => replacedAdds -= k
+        case _ =>
+      }
+      pending.put(k, v)
+    }
+    if (!scheduled) {
+      scheduled = true
+      handler.send((), delay.toMillis)
+    }
+    pendingSaved.future
+  } .flatMap(identity)
+
+  /**
+   * Saves all pending writes.
+   * @return future completed once all writes queued so far are committed
+   */
+  def flush(): Future[Unit] = Future {
+    scheduled = false
+    if (pending.isEmpty) lastFlush // storage executes transactions in order, so it's enough to wait for last one
+    else {
+      val writes = pending.toVector
+      val saved = pendingSaved
+      val replaced = replacedAdds.toSet
+      pending.clear()
+      replacedAdds.clear()
+      pendingSaved = Promise[Set[K]]()
+
+      val values = writes.collect { case (_, Some(v)) => v }
+      val removed = writes.collect { case (k, None) => k }
+      verbose(s"flush: ${values.size} saved, ${removed.size} removed")
+
+      saved.completeWith(storage { implicit db =>
+        if (values.nonEmpty) dao.insert(values)
+        removed.filter(k => dao.delete(k) > 0 || replaced(k)).toSet
+      })
+      val flushed = saved.future.map(_ => ())
+      lastFlush = flushed.recover { case _ => () }
+      flushed
+    }
+  } .flatMap(identity)
+}
+
+object WriteBehindQueue {
+  private implicit val tag: LogTag = "WriteBehindQueue"
+}
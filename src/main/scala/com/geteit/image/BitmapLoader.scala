@@ -1,6 +1,7 @@
 package com.geteit.image
 
 import java.io.{File, FileInputStream, InputStream}
+import java.nio.ByteBuffer
 
 import android.app.ActivityManager
 import android.content.{ContentResolver, Context}
@@ -10,7 +11,7 @@ import android.provider.MediaStore
 import android.provider.MediaStore.Images.ImageColumns
 import android.util.Log
 import com.geteit.app.GtContext
-import com.geteit.util.IoUtils
+import com.geteit.util.{ByteBufferInputStream, IoUtils}
 import com.geteit.util.Log._
 
 /**
@@ -41,6 +42,13 @@ object BitmapLoader {
     def apply(file: File, minSideLen: Int, maxSize: Int): Option[Bitmap] =
         inSampleSize(new FileInputStream(file), minSideLen, maxSize) flatMap { apply(new FileInputStream(file), _) }
 
+    /**
+     * Decodes image directly from buffer (for example memory mapped cache entry), without copying it to byte array.
+     */
+    def apply(buffer: ByteBuffer): Option[Bitmap] = apply(buffer, UNCONSTRAINED, MAX_SIZE)
+    def apply(buffer: ByteBuffer, minSideLen: Int, maxSize: Int): Option[Bitmap] =
+        inSampleSize(new ByteBufferInputStream(buffer), minSideLen, maxSize) flatMap { apply(new ByteBufferInputStream(buffer), _) }
+
     def apply(uri: Uri): Option[Bitmap] = apply(uri, UNCONSTRAINED, MAX_SIZE)
     def apply(uri: Uri, minSideLen: Int, maxSize: Int): Option[Bitmap] = {
 
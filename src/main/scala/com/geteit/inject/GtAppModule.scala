@@ -12,7 +12,7 @@ object GtAppModule {
   def apply() = new Module {
     bind [MemoryImageCache] to new MemoryImageCache
     bind [ImageProvider] to new BasicImageProvider
-    bind [CacheService] to new CacheService
+    bind [CacheService] to new CacheService()
     bind [CacheStorage] to new CacheStorage
     bind [UserAgent] to UserAgent(inject[Context])
     bind [AsyncClient] to new AsyncClient
@@ -0,0 +1,36 @@
+package com.geteit.util
+
+import java.io.InputStream
+import java.nio.ByteBuffer
+
+/**
+ * InputStream reading from given buffer, doesn't modify position of passed buffer.
+ */
+class ByteBufferInputStream(buffer: ByteBuffer) extends InputStream {
+  private val buf = buffer.duplicate()
+
+  override def read(): Int = if (buf.hasRemaining) buf.get() & 0xff else -1
+
+  override def read(b: Array[Byte], off: Int, len: Int): Int =
+    if (len == 0) 0
+    else if (!buf.hasRemaining) -1
+    else {
+      val count = len min buf.remaining()
+      buf.get(b, off, count)
+      count
+    }
+
+  override def skip(n: Long): Long = {
+    val count = n.min(buf.remaining()).max(0L).toInt
+    buf.position(buf.position() + count)
+    count
+  }
+
+  override def available(): Int = buf.remaining()
+
+  override def markSupported(): Boolean = true
+
+  override def mark(readLimit: Int): Unit = buf.mark()
+
+  override def reset(): Unit = buf.reset()
+}
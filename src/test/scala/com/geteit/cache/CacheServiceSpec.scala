@@ -0,0 +1,85 @@
+package com.geteit.cache
+
+import java.io.ByteArrayInputStream
+import java.util.concurrent.atomic.AtomicInteger
+
+import android.content.Context
+import android.database.sqlite.SQLiteOpenHelper
+import com.geteit.cache.CacheEntryData.CacheEntryDao
+import com.geteit.db.{DaoDB, Migration, Storage}
+import com.geteit.events.EventContext
+import com.geteit.inject.Module
+import org.robolectric.RuntimeEnvironment
+import org.scalatest.concurrent.ScalaFutures
+import org.scalatest.time._
+import org.scalatest.{FeatureSpec, Matchers, RobolectricSuite}
+
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future, Promise}
+
+class CacheServiceSpec extends FeatureSpec with Matchers with RobolectricSuite with ScalaFutures {
+
+  override implicit val patienceConfig = PatienceConfig(Span(10, Seconds), Span(100, Millis))
+
+  lazy val context = RuntimeEnvironment.application
+
+  implicit lazy val module: Module = new Module {
+    bind[Context]       to context
+    bind[EventContext]  to EventContext.Global
+    bind[Storage]       to new Storage() {
+      override val dbHelper: SQLiteOpenHelper = new SQLiteOpenHelper(context, "cache-service-spec", null, 1) with DaoDB {
+        override val daos = Seq(CacheEntryDao)
+        override val migrations: Seq[Migration] = Nil
+      }
+    }
+    bind[CacheStorage]  to new CacheStorage
+    bind[CacheService]  to service
+  }
+
+  lazy val service = new CacheService
+
+  val content = Array.fill[Byte](2 * CacheService.MaxDbDataSize)(1) // stored in file
+
+  feature("Single flight") {
+
+    scenario("Run getOrElse producer once for concurrent callers") {
+      val produced = new AtomicInteger(0)
+      val gate = Promise[Unit]()
+      def default = {
+        produced.incrementAndGet()
+        gate.future map { _ => service.addData("flight_1", Array[Byte](1, 2, 3)) }
+      }
+
+      val results = Seq.fill(10)(service.getOrElse("flight_1", default))
+      gate.success(())
+
+      Future.sequence(results).futureValue.map(_.data.key) shouldEqual Seq.fill(10)("flight_1")
+      produced.get shouldEqual 1
+    }
+
+    scenario("Read addStream input once for concurrent writes") {
+      val opened = new AtomicInteger(0)
+      val gate = Promise[Unit]()
+      def input = {
+        opened.incrementAndGet()
+        Await.ready(gate.future, 10.seconds)
+        new ByteArrayInputStream(content)
+      }
+
+      val results = Seq.fill(5)(service.addStream("flight_2", input))
+      gate.success(())
+
+      Future.sequence(results).futureValue.map(_.data.key) shouldEqual Seq.fill(5)("flight_2")
+      opened.get shouldEqual 1
+      service.getEntry("flight_2").futureValue.map(_.getData.length) shouldEqual Some(content.length)
+    }
+
+    scenario("Don't deadlock when getOrElse default adds stream for the same key") {
+      val results = Seq.fill(3)(service.getOrElse("flight_3", service.addStream("flight_3", new ByteArrayInputStream(content))))
+
+      Future.sequence(results).futureValue.map(_.data.key) shouldEqual Seq.fill(3)("flight_3")
+      service.getEntry("flight_3").futureValue.map(_.getData.length) shouldEqual Some(content.length)
+    }
+  }
+}
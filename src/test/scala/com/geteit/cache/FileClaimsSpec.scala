@@ -0,0 +1,54 @@
+package com.geteit.cache
+
+import org.scalatest.{FeatureSpec, Matchers}
+
+class FileClaimsSpec extends FeatureSpec with Matchers {
+
+  feature("Cleanup of shared files") {
+    val id = Uid()
+
+    scenario("Delete unclaimed file") {
+      val claims = new FileClaims
+      val since = claims.begin()
+      claims.deleteUnclaimed(Seq(id), since)(_ => ()) shouldEqual Seq(id)
+      claims.end(since)
+    }
+
+    scenario("Keep file claimed during reference check") {
+      val claims = new FileClaims
+      val since = claims.begin()
+      claims.claim(id)(())
+      claims.deleteUnclaimed(Seq(id), since)(_ => fail("claimed file deleted")) shouldEqual Nil
+      claims.end(since)
+    }
+
+    scenario("Keep file claimed and released during reference check") {
+      val claims = new FileClaims
+      val since = claims.begin()
+      claims.claim(id)(())
+      claims.release(id) // entry saved after reference check read db
+      claims.deleteUnclaimed(Seq(id), since)(_ => fail("claimed file deleted")) shouldEqual Nil
+      claims.end(since)
+    }
+
+    scenario("Delete file released before reference check") {
+      val claims = new FileClaims
+      claims.claim(id)(())
+      claims.release(id)
+      val since = claims.begin()
+      claims.deleteUnclaimed(Seq(id), since)(_ => ()) shouldEqual Seq(id)
+      claims.end(since)
+    }
+
+    scenario("Keep changes needed by cleanup still running") {
+      val claims = new FileClaims
+      val first = claims.begin()
+      claims.claim(id)(())
+      claims.release(id)
+      val second = claims.begin()
+      claims.end(second)
+      claims.deleteUnclaimed(Seq(id), first)(_ => fail("claimed file deleted")) shouldEqual Nil
+      claims.end(first)
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package com.geteit.cache
+
+import java.io.{File, FileOutputStream}
+
+import com.geteit.util.{IoUtils, returning}
+import org.scalatest.{BeforeAndAfter, FeatureSpec, Matchers}
+
+class MappedBufferPoolSpec extends FeatureSpec with Matchers with BeforeAndAfter {
+
+  var file: File = _
+
+  before {
+    file = File.createTempFile("mapped", ".bin")
+    write(Array[Byte](1, 2, 3))
+  }
+
+  after {
+    file.delete()
+  }
+
+  def write(data: Array[Byte]) = IoUtils.withResource(new FileOutputStream(file)) { _.write(data) }
+
+  def bytes(region: MappedRegion): Seq[Byte] = {
+    val buffer = region.buffer.duplicate()
+    returning(new Array[Byte](buffer.remaining()))(buffer.get(_)).toSeq
+  }
+
+  feature("Sharing mappings") {
+
+    scenario("Share mapping between concurrent readers") {
+      val pool = new MappedBufferPool
+      val r1 = pool.acquire(file)
+      val r2 = pool.acquire(file)
+      pool.size shouldEqual 1
+      bytes(r1) shouldEqual Seq[Byte](1, 2, 3)
+      bytes(r2) shouldEqual Seq[Byte](1, 2, 3)
+
+      r1.release()
+      pool.size shouldEqual 1
+      r2.release()
+      pool.size shouldEqual 0
+    }
+
+    scenario("Release region only once") {
+      val pool = new MappedBufferPool
+      val r1 = pool.acquire(file)
+      val r2 = pool.acquire(file)
+      r1.release()
+      r1.close()
+      pool.size shouldEqual 1
+      r2.close()
+      pool.size shouldEqual 0
+    }
+  }
+
+  feature("Invalidation") {
+
+    scenario("Map new content after file is invalidated and rewritten") {
+      val pool = new MappedBufferPool
+      val r1 = pool.acquire(file)
+      bytes(r1) shouldEqual Seq[Byte](1, 2, 3)
+      r1.release()
+
+      val r2 = pool.acquire(file)
+      pool.invalidate(file)
+      write(Array[Byte](4, 5, 6, 7))
+      val r3 = pool.acquire(file)
+      bytes(r3) shouldEqual Seq[Byte](4, 5, 6, 7)
+
+      r2.release() // stale region release doesn't drop current mapping
+      pool.size shouldEqual 1
+      r3.release()
+      pool.size shouldEqual 0
+    }
+  }
+}
@@ -0,0 +1,408 @@
+package com.geteit.db
+
+import android.content.Context
+import android.database.sqlite.{SQLiteDatabase, SQLiteOpenHelper}
+import com.geteit.events.EventContext
+import com.geteit.inject.{Injector, Module}
+import com.geteit.json.Json
+import com.geteit.util.LruCache
+import org.robolectric.RuntimeEnvironment
+import org.scalatest.concurrent.ScalaFutures
+import org.scalatest.time._
+import org.scalatest.{FeatureSpec, Matchers, RobolectricSuite}
+
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.{Await, Future, Promise}
+import scala.concurrent.duration._
+
+class CachedStorageSpec extends FeatureSpec with Matchers with RobolectricSuite with ScalaFutures {
+  import Record.RecordDao
+
+  override implicit val patienceConfig = PatienceConfig(Span(10, Seconds), Span(100, Millis))
+
+  lazy val context = RuntimeEnvironment.application
+
+  lazy val storage: Storage = new Storage() {
+    override val dbHelper: SQLiteOpenHelper = new SQLiteOpenHelper(context, "cached-storage-spec", null, 1) with DaoDB {
+      override val daos = Seq(RecordDao)
+      override val migrations: Seq[Migration] = Nil
+    }
+  }
+
+  implicit lazy val module = new Module {
+    bind[Context]       to context
+    bind[EventContext]  to EventContext.Global
+    bind[Storage]       to storage
+  }
+
+  def saveInDb(records: Record*) = storage { RecordDao.insert(records)(_) }.futureValue
+
+  // completes `done` once result is ready, but returns it only after `gate` (defined here, so storage overrides don't see two execution contexts)
+  def held[A](result: Future[A], done: Promise[Unit], gate: Future[Unit]): Future[A] =
+    result andThen { case _ => done.trySuccess(()) } flatMap { a => gate map { _ => a } }
+
+  feature("Loading") {
+
+    scenario("Load concurrent misses in batches") {
+      val records = (1 to 20) map { i => Record(s"batch_$i", i) }
+      saveInDb(records: _*)
+      RecordDao.clearLoads()
+
+      val records1 = new RecordStorage
+      Future.sequence(records.map(r => records1.get(r.id))).futureValue shouldEqual records.map(Some(_))
+
+      val loads = RecordDao.loads
+      loads.flatten.sorted shouldEqual records.map(_.id).sorted
+      loads.size should be < records.size
+    }
+
+    scenario("Never load the same key twice at a time") {
+      saveInDb(Record("same", 1))
+      RecordDao.clearLoads()
+
+      val records1 = new RecordStorage
+      Future.sequence(Seq.fill(10)(records1.get("same"))).futureValue shouldEqual Seq.fill(10)(Some(Record("same", 1)))
+      RecordDao.loads.flatten.count(_ == "same") shouldEqual 1
+    }
+
+    scenario("Cache missing key") {
+      RecordDao.clearLoads()
+
+      val records1 = new RecordStorage
+      records1.get("missing").futureValue shouldEqual None
+      records1.get("missing").futureValue shouldEqual None
+      RecordDao.loads.flatten shouldEqual Seq("missing")
+    }
+  }
+
+  feature("Write-behind") {
+    def loadFromDb(id: String) = storage.read { RecordDao.get(id)(_) }.futureValue
+
+    scenario("Last write wins") {
+      val records1 = new RecordStorage(Some(1.hour))
+      val added = Seq(records1.add(Record("wb_1", 1)), records1.add(Record("wb_1", 2)))
+      records1.get("wb_1").futureValue shouldEqual Some(Record("wb_1", 2))
+      loadFromDb("wb_1") shouldEqual None
+
+      records1.flush().futureValue
+      Future.sequence(added).futureValue
+      loadFromDb("wb_1") shouldEqual Some(Record("wb_1", 2))
+    }
+
+    scenario("Remove cancels pending add") {
+      saveInDb(Record("wb_2", 1))
+      val records1 = new RecordStorage(Some(1.hour))
+      records1.add(Record("wb_3", 1))
+      records1.remove("wb_2")
+      records1.remove("wb_3")
+      records1.add(Record("wb_2", 2))
+      records1.remove("wb_2")
+
+      records1.flush().futureValue
+      loadFromDb("wb_2") shouldEqual None
+      loadFromDb("wb_3") shouldEqual None
+    }
+
+    scenario("Remove reports deleted rows once flushed") {
+      saveInDb(Record("wb_4", 1))
+      val records1 = new RecordStorage(Some(1.hour))
+      val removedExisting = records1.remove("wb_4")
+      val removedMissing = records1.remove("wb_5")
+      records1.add(Record("wb_6", 1))
+      val removedAdded = records1.remove("wb_6")
+      removedExisting.isCompleted shouldEqual false
+
+      records1.flush().futureValue
+      removedExisting.futureValue shouldEqual 1
+      removedMissing.futureValue shouldEqual 0
+      removedAdded.futureValue shouldEqual 1
+    }
+
+    scenario("Flush is a durability barrier") {
+      val records1 = new RecordStorage(Some(1.hour))
+      (1 to 10) foreach { i => records1.add(Record(s"wb_flush_$i", i)) }
+      records1.flush().futureValue
+
+      (1 to 10) foreach { i => loadFromDb(s"wb_flush_$i") shouldEqual Some(Record(s"wb_flush_$i", i)) }
+      records1.flush().futureValue // nothing pending
+    }
+
+    scenario("Queries wait for pending writes") {
+      val records1 = new RecordStorage(Some(1.hour))
+      records1.add(Record("wb_query", 1001))
+      records1.find(Matcher.equal(RecordDao.ValueIndex)(1001)).futureValue shouldEqual Set("wb_query")
+      loadFromDb("wb_query") shouldEqual Some(Record("wb_query", 1001))
+    }
+  }
+
+  feature("Memory indexes") {
+
+    scenario("Answer equal and in lookups from memory") {
+      saveInDb(Record("mem_1", 6001), Record("mem_2", 6002))
+      val records1 = new IndexedRecordStorage
+      records1.find(Matcher.equal(RecordDao.ValueIndex)(6001)).futureValue shouldEqual Set("mem_1")
+
+      saveInDb(Record("mem_3", 6001)) // not visible to memory index, so lookups can't be answered from db
+      records1.find(Matcher.equal(RecordDao.ValueIndex)(6001)).futureValue shouldEqual Set("mem_1")
+      records1.find(Matcher.in(RecordDao.ValueIndex)(Set(6001, 6002))).futureValue shouldEqual Set("mem_1", "mem_2")
+      records1.find(Matcher.greater(RecordDao.ValueIndex)(6000)).futureValue shouldEqual Set("mem_1", "mem_2", "mem_3") // not indexed matcher
+    }
+
+    scenario("Keep updates and removes issued while index is loading") {
+      saveInDb(Record("mem_4", 6004), Record("mem_5", 6004))
+      val records1 = new IndexedRecordStorage
+      records1.get("mem_4").futureValue // cached, so update doesn't need read thread blocked below
+      val loading = Promise[Unit]()
+      val gate = Promise[Unit]()
+      RecordDao.onList = { _ =>
+        loading.trySuccess(())
+        Await.ready(gate.future, 10.seconds) // items were already read, so they are outdated by writes done meanwhile
+      }
+      try {
+        val found = records1.find(Matcher.equal(RecordDao.ValueIndex)(6004))
+        loading.future.futureValue
+
+        records1.update("mem_4", _.copy(value = 6005)).futureValue
+        records1.remove("mem_5").futureValue
+        gate.success(())
+
+        found.futureValue shouldEqual Set.empty
+        records1.find(Matcher.equal(RecordDao.ValueIndex)(6004)).futureValue shouldEqual Set.empty
+        records1.find(Matcher.equal(RecordDao.ValueIndex)(6005)).futureValue shouldEqual Set("mem_4")
+      } finally RecordDao.onList = { _ => () }
+    }
+
+    scenario("Retry loading after failure") {
+      saveInDb(Record("mem_6", 6006))
+      val records1 = new IndexedRecordStorage
+      var lists = 0
+      RecordDao.onList = { _ =>
+        lists += 1
+        if (lists == 1) throw new RuntimeException("list failed")
+      }
+      try {
+        records1.find(Matcher.equal(RecordDao.ValueIndex)(6006)).futureValue shouldEqual Set("mem_6") // answered from db
+        records1.find(Matcher.equal(RecordDao.ValueIndex)(6006)).futureValue shouldEqual Set("mem_6")
+        lists shouldEqual 2
+
+        saveInDb(Record("mem_7", 6006))
+        records1.find(Matcher.equal(RecordDao.ValueIndex)(6006)).futureValue shouldEqual Set("mem_6") // loaded index is used now
+        lists shouldEqual 2
+      } finally RecordDao.onList = { _ => () }
+    }
+  }
+
+  feature("Find signal") {
+    implicit val ev: EventContext = EventContext.Global
+
+    scenario("Apply changes received while ids are loaded") {
+      saveInDb(Record("find_1", 2001), Record("find_2", 2001))
+      val found = Promise[Unit]()
+      val gate = Promise[Unit]()
+      val records1 = new RecordStorage {
+        // holds find result until changes below are made
+        override def find(matcher: Matcher[Record]): Future[Set[String]] =
+          held(super.find(matcher), found, gate.future)
+      }
+
+      val ids = records1.findSignal(Matcher.equal(RecordDao.ValueIndex)(2001))
+      val loaded = ids.head.future
+      found.future.futureValue
+
+      records1.add(Record("find_3", 2001)).futureValue
+      records1.remove("find_1").futureValue
+      records1.update("find_2", _.copy(value = 1)).futureValue
+      gate.success(())
+
+      loaded.futureValue shouldEqual Set("find_3")
+    }
+
+    scenario("Update ids on changes") {
+      val records1 = new RecordStorage
+      val ids = records1.findSignal(Matcher.equal(RecordDao.ValueIndex)(2002))
+      val subscription = ids { _ => () } // keeps signal wired, so changes are applied to loaded ids
+      ids.head.future.futureValue shouldEqual Set.empty
+
+      records1.add(Record("find_4", 2002))
+      ids.filter(_ == Set("find_4")).head.future.futureValue shouldEqual Set("find_4")
+      records1.remove("find_4")
+      ids.filter(_.isEmpty).head.future.futureValue shouldEqual Set.empty
+      subscription.destroy()
+    }
+  }
+
+  feature("Paged signal") {
+    implicit val ev: EventContext = EventContext.Global
+
+    scenario("Load pages with duplicate index values and follow changes") {
+      saveInDb((1 to 5).map(i => Record(s"paged_$i", 5001)) :+ Record("paged_6", 5002): _*)
+      val records1 = new RecordStorage
+      val paged = records1.pagedSignal(RecordDao.ValueIndex, Matcher.greater(RecordDao.ValueIndex)(5000), pageSize = 2)
+      val subscription = paged { _ => () }
+      def ids(size: Int) = paged.filter(_.size == size).head.future.futureValue.map(_.id)
+
+      ids(2) shouldEqual Seq("paged_1", "paged_2")
+      paged.loadMore()
+      ids(4) shouldEqual Seq("paged_1", "paged_2", "paged_3", "paged_4")
+      paged.loadMore()
+      ids(6) shouldEqual Seq("paged_1", "paged_2", "paged_3", "paged_4", "paged_5", "paged_6")
+
+      records1.remove("paged_3")
+      ids(5) shouldEqual Seq("paged_1", "paged_2", "paged_4", "paged_5", "paged_6")
+      subscription.destroy()
+    }
+
+    scenario("Publish during burst of changes") {
+      val records1 = new RecordStorage
+      val paged = records1.pagedSignal(RecordDao.ValueIndex, Matcher.equal(RecordDao.ValueIndex)(5003), pageSize = 100)
+      val subscription = paged { _ => () }
+      paged.head.future.futureValue shouldBe empty
+
+      (1 to 50) foreach { i => records1.add(Record(s"paged_burst_$i", 5003)) }
+      paged.filter(_.size == 50).head.future.futureValue should have size 50
+      subscription.destroy()
+    }
+  }
+
+  feature("Top signal") {
+    implicit val ev: EventContext = EventContext.Global
+
+    scenario("Apply changes received while window is loaded") {
+      saveInDb(Record("top_1", 3001), Record("top_2", 3002))
+      val gate = Promise[Unit]()
+      val records1 = new RecordStorage {
+        override def top[B](index: Index[Record, B], matcher: Matcher[Record], limit: Int, descending: Boolean): Future[Seq[Record]] =
+          held(super.top(index, matcher, limit, descending), Promise[Unit](), gate.future)
+      }
+
+      val top = records1.topSignal(RecordDao.ValueIndex, Matcher.greater(RecordDao.ValueIndex)(3000), limit = 2)
+      val loaded = top.head.future
+      (1 to 10) foreach { i => records1.add(Record(s"top_unrelated_$i", i)) } // don't cause reload
+      records1.add(Record("top_0", 3000)).futureValue
+      records1.add(Record("top_3", 3001)).futureValue
+      gate.success(())
+
+      loaded.futureValue.map(_.id) shouldEqual Seq("top_1", "top_3")
+    }
+  }
+
+  feature("Transactions") {
+    implicit val ev: EventContext = EventContext.Global
+
+    def loadFromDb(id: String) = storage.read { RecordDao.get(id)(_) }.futureValue
+
+    scenario("Failed write doesn't affect writes grouped with it") {
+      val before = (1 to 10) map { i => storage { RecordDao.insert(Record(s"tx_before_$i", i))(_) } }
+      val failing = storage { db =>
+        RecordDao.insert(Record("tx_1", 1))(db)
+        throw new IllegalStateException("failing write")
+      }
+      val after = (1 to 10) map { i => storage { RecordDao.insert(Record(s"tx_after_$i", i))(_) } }
+
+      failing.failed.futureValue shouldBe an[IllegalStateException]
+      Future.sequence(before ++ after).futureValue should have size 20
+      loadFromDb("tx_1") shouldEqual None
+      (1 to 10) foreach { i =>
+        loadFromDb(s"tx_before_$i") shouldEqual Some(Record(s"tx_before_$i", i))
+        loadFromDb(s"tx_after_$i") shouldEqual Some(Record(s"tx_after_$i", i))
+      }
+    }
+
+    scenario("Unit of work updates cache and sends events after commit") {
+      saveInDb(Record("uow_2", 1), Record("uow_3", 1))
+      val records1 = new RecordStorage
+      val item1 = records1.signal("uow_1")
+      val item2 = records1.signal("uow_2")
+      val subscriptions = Seq(item1 { _ => () }, item2 { _ => () })
+      item2.head.future.futureValue shouldEqual Some(Record("uow_2", 1))
+
+      val uow = storage.unitOfWork()
+      val saved = records1.save(Seq(Record("uow_1", 1), Record("uow_2", 2)), uow)
+      val removed = records1.removeAll(Seq("uow_3"), uow)
+      uow.insert(RecordDao)(Seq(Record("uow_4", 4)))
+      loadFromDb("uow_1") shouldEqual None
+
+      uow.commit().futureValue
+      saved.futureValue
+      removed.futureValue
+
+      Seq("uow_1", "uow_2", "uow_3", "uow_4") map loadFromDb shouldEqual Seq(Some(Record("uow_1", 1)), Some(Record("uow_2", 2)), None, Some(Record("uow_4", 4)))
+      records1.getAll(Seq("uow_1", "uow_2", "uow_3")).futureValue shouldEqual Seq(Some(Record("uow_1", 1)), Some(Record("uow_2", 2)), None)
+      item1.filter(_.isDefined).head.future.futureValue shouldEqual Some(Record("uow_1", 1))
+      item2.filter(_.exists(_.value == 2)).head.future.futureValue shouldEqual Some(Record("uow_2", 2))
+      subscriptions foreach (_.destroy())
+    }
+
+    scenario("Failed unit of work doesn't change cache") {
+      val records1 = new RecordStorage
+      val uow = storage.unitOfWork()
+      val saved = records1.save(Seq(Record("uow_5", 5)), uow)
+      uow { _ => throw new IllegalStateException("failing write") }
+
+      uow.commit().failed.futureValue shouldBe an[IllegalStateException]
+      saved.failed.futureValue shouldBe an[IllegalStateException]
+      loadFromDb("uow_5") shouldEqual None
+      records1.get("uow_5").futureValue shouldEqual None
+    }
+  }
+
+  feature("Bulk import") {
+    implicit val ev: EventContext = EventContext.Global
+
+    scenario("Signals reload after import") {
+      val records1 = new RecordStorage
+      val ids = records1.findSignal(Matcher.equal(RecordDao.ValueIndex)(4001))
+      val item = records1.signal("import_1")
+      val subscriptions = Seq(ids { _ => () }, item { _ => () })
+      ids.head.future.futureValue shouldEqual Set.empty
+
+      records1.bulkImport((1 to 10).iterator map { i => Record(s"import_$i", 4001) }).futureValue shouldEqual 10
+      ids.filter(_.size == 10).head.future.futureValue shouldEqual (1 to 10).map(i => s"import_$i").toSet
+      item.filter(_.isDefined).head.future.futureValue shouldEqual Some(Record("import_1", 4001))
+      subscriptions foreach (_.destroy())
+    }
+  }
+}
+
+
+class RecordStorage(writeBehindDelay: Option[FiniteDuration] = None)(implicit inj: Injector) extends CachedStorage[String, Record] with CachedStorageSignal[String, Record] {
+  override protected val cache = new LruCache[String, Option[Record]](100)
+  override protected def writeBehind = writeBehindDelay
+}
+
+class IndexedRecordStorage(implicit inj: Injector) extends RecordStorage() {
+  override protected def memoryIndexes = Seq(Record.RecordDao.ValueIndex)
+}
+
+@Json
+case class Record(id: String, value: Int)
+
+object Record {
+
+  implicit object RecordDao extends Dao[String, Record] {
+    val ValueIndex = Index[Record, Int]("value", _.value)
+
+    override val table = Table("Records", Seq(ValueIndex))
+    override def getId(v: Record) = v.id
+
+    // keys requested by every `getAll` call
+    @volatile private var requested = Vector.empty[Seq[String]]
+
+    def loads = requested
+    def clearLoads() = requested = Vector.empty
+
+    // called with every full table `list` result, before it's returned
+    @volatile var onList: Seq[Record] => Unit = { _ => () }
+
+    override def list(implicit db: SQLiteDatabase): Seq[Record] = {
+      val items = super.list
+      onList(items)
+      items
+    }
+
+    override def getAll(ids: Traversable[String])(implicit db: SQLiteDatabase): Seq[(String, Record)] = {
+      synchronized { requested :+= ids.toSeq }
+      super.getAll(ids)
+    }
+  }
+}
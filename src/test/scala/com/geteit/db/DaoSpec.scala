@@ -0,0 +1,120 @@
+package com.geteit.db
+
+import android.database.sqlite.{SQLiteDatabase, SQLiteOpenHelper}
+import org.robolectric.RuntimeEnvironment
+import org.scalatest.{BeforeAndAfter, FeatureSpec, Matchers, RobolectricSuite}
+
+class DaoSpec extends FeatureSpec with Matchers with BeforeAndAfter with RobolectricSuite {
+  import Message.MessageDao
+  import MessageDao.{TextIndex, TimeIndex}
+
+  lazy val dbHelper = new SQLiteOpenHelper(RuntimeEnvironment.application, "dao-spec", null, 1) with DaoDB {
+    override val daos = Seq(MessageDao)
+    override val migrations: Seq[Migration] = Nil
+  }
+
+  implicit def db: SQLiteDatabase = dbHelper.getWritableDatabase
+
+  val messages = Seq(
+    Message("1", "it's a test", 10),
+    Message("2", "100% done", 20),
+    Message("3", "under_score", 30),
+    Message("4", "other", 40)
+  )
+
+  before {
+    MessageDao.deleteAll(MessageDao.list(db).map(_.id))
+    MessageDao.insert(messages)
+  }
+
+  feature("Ordered queries") {
+    scenario("Top items") {
+      MessageDao.top(TimeIndex, Matcher.all, 2).map(_.id) shouldEqual Seq("1", "2")
+      MessageDao.top(TimeIndex, Matcher.all, 2, descending = true).map(_.id) shouldEqual Seq("4", "3")
+      MessageDao.top(TimeIndex, Matcher.greater(TimeIndex)(10L), 10, descending = true).map(_.id) shouldEqual Seq("4", "3", "2")
+    }
+  }
+
+  feature("Keyset pages") {
+    scenario("Page through duplicate index values") {
+      MessageDao.insert((5 to 9) map { i => Message(s"$i", s"duplicate $i", 20) })
+
+      def pages(after: Option[(Long, String)]): List[Seq[Message]] = {
+        val page = MessageDao.page(TimeIndex, Matcher.all, after, 2)
+        if (page.size < 2) List(page) else page :: pages(page.lastOption.map(m => (m.time, m.id)))
+      }
+
+      val loaded = pages(None)
+      loaded.map(_.size) shouldEqual List(2, 2, 2, 2, 1)
+      loaded.flatten.map(_.id) shouldEqual Seq("1", "2", "5", "6", "7", "8", "9", "3", "4")
+    }
+
+    scenario("Foreach decodes every matching row") {
+      var found = Seq.empty[String]
+      MessageDao.foreach(MessageDao.query(Matcher.greater(TimeIndex)(10L))) { m => found :+= m.id }
+      found.sorted shouldEqual Seq("2", "3", "4")
+    }
+  }
+
+  feature("Partial loading") {
+    scenario("Projections") {
+      MessageDao.project(TimeIndex, Matcher.less(TimeIndex)(30L)).toSet shouldEqual Set("1" -> 10L, "2" -> 20L)
+      MessageDao.project(TextIndex, TimeIndex, Matcher.equal(TimeIndex)(40L)) shouldEqual Seq(("4", "other", 40L))
+    }
+
+    scenario("Lazy rows") {
+      val rows = MessageDao.lazyRows(Matcher.greater(TimeIndex)(20L))
+      rows.map(_.id).toSet shouldEqual Set("3", "4")
+      rows.map(_.item).toSet shouldEqual messages.filter(_.time > 20).toSet
+    }
+  }
+
+  feature("Full text search") {
+    def search(q: String) = MessageDao.find(Matcher.search(MessageDao, TextIndex)(q)).toSet
+
+    scenario("Search index is updated on insert and delete") {
+      MessageDao.insert(Message("4", "another test", 40))
+      search("test") shouldEqual Set("1", "4")
+      search("other") shouldEqual Set()
+
+      MessageDao.delete("1")
+      search("test") shouldEqual Set("4")
+
+      MessageDao.insertOrIgnore(Seq(Message("4", "ignored", 40)))
+      search("ignored") shouldEqual Set()
+    }
+
+    scenario("Rebuild search index") {
+      MessageDao.rebuildSearchIndex()
+      search("test") shouldEqual Set("1")
+    }
+  }
+
+  feature("Bulk import") {
+    scenario("Import items in chunks") {
+      val imported = (1 to 12000).map { i => Message(s"bulk_$i", s"bulk message $i", 100L + i) }
+      var progress = Seq.empty[Int]
+
+      MessageDao.bulkImport(imported.iterator, { count => progress :+= count }) shouldEqual imported.size
+      progress shouldEqual Seq(5000, 10000, 12000)
+
+      MessageDao.get("bulk_123") shouldEqual Some(imported(122))
+      MessageDao.count(Matcher.greater(TimeIndex)(100L)) shouldEqual imported.size
+      MessageDao.count(Matcher.search(MessageDao, TextIndex)("bulk")) shouldEqual imported.size
+      db.compileStatement(s"SELECT count(*) FROM sqlite_master WHERE type = 'index' AND name = 'idx_Messages_time'").simpleQueryForLong() shouldEqual 1
+    }
+
+    scenario("Restore indexes after interrupted import") {
+      // state left when process dies during import
+      db.execSQL("CREATE TABLE IF NOT EXISTS BulkImports (name TEXT PRIMARY KEY)")
+      db.execSQL("INSERT OR REPLACE INTO BulkImports (name) VALUES ('Messages')")
+      db.execSQL(TimeIndex.dropIndexSql("Messages"))
+      db.execSQL(s"DELETE FROM ${MessageDao.table.searchTable}")
+
+      MessageDao.finishInterruptedImport
+      db.compileStatement(s"SELECT count(*) FROM sqlite_master WHERE type = 'index' AND name = 'idx_Messages_time'").simpleQueryForLong() shouldEqual 1
+      MessageDao.find(Matcher.search(MessageDao, TextIndex)("test")).toSet shouldEqual Set("1")
+      db.compileStatement("SELECT count(*) FROM BulkImports").simpleQueryForLong() shouldEqual 0
+    }
+  }
+}
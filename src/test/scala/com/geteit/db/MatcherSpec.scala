@@ -0,0 +1,86 @@
+package com.geteit.db
+
+import android.database.sqlite.{SQLiteDatabase, SQLiteOpenHelper}
+import org.robolectric.RuntimeEnvironment
+import org.scalatest.{BeforeAndAfter, FeatureSpec, Matchers, RobolectricSuite}
+
+class MatcherSpec extends FeatureSpec with Matchers with BeforeAndAfter with RobolectricSuite {
+  import Message.MessageDao
+  import MessageDao.{TextIndex, TimeIndex}
+
+  lazy val dbHelper = new SQLiteOpenHelper(RuntimeEnvironment.application, "matcher-spec", null, 1) with DaoDB {
+    override val daos = Seq(MessageDao)
+    override val migrations: Seq[Migration] = Nil
+  }
+
+  implicit def db: SQLiteDatabase = dbHelper.getWritableDatabase
+
+  val messages = Seq(
+    Message("1", "it's a test", 10),
+    Message("2", "100% done", 20),
+    Message("3", "under_score", 30),
+    Message("4", "other", 40)
+  )
+
+  before {
+    MessageDao.deleteAll(MessageDao.list(db).map(_.id))
+    MessageDao.insert(messages)
+  }
+
+  feature("Sql generation") {
+    scenario("Values are passed as bind args") {
+      val m = Matcher.equal(TimeIndex)(10L)
+      m.whereSql shouldEqual "time = ?"
+      m.whereArgs shouldEqual Seq("10")
+    }
+
+    scenario("Same query shape produces the same sql") {
+      Matcher.in(TextIndex)(Set("a", "b")).whereSql shouldEqual Matcher.in(TextIndex)(Set("c", "d")).whereSql
+      Matcher.like(TextIndex)("a").whereSql shouldEqual Matcher.like(TextIndex)("it's").whereSql
+    }
+  }
+
+  feature("Queries") {
+    def find(m: Matcher[Message]) = {
+      val found = MessageDao.find(m).toSet
+      found shouldEqual messages.filter(m(_)).map(_.id).toSet
+      found
+    }
+
+    scenario("Like with quote") {
+      find(Matcher.like(TextIndex)("it's")) shouldEqual Set("1")
+    }
+
+    scenario("Like with wildcard characters") {
+      find(Matcher.like(TextIndex)("0%")) shouldEqual Set("2")
+      find(Matcher.startsWith(TextIndex)("under_")) shouldEqual Set("3")
+      find(Matcher.like(TextIndex)("_")) shouldEqual Set("3")
+    }
+
+    scenario("Equal and in on integer column") {
+      find(Matcher.equal(TimeIndex)(20L)) shouldEqual Set("2")
+      find(Matcher.in(TimeIndex)(Set(10L, 40L))) shouldEqual Set("1", "4")
+    }
+
+    scenario("Range matchers") {
+      find(Matcher.less(TimeIndex)(20L)) shouldEqual Set("1")
+      find(Matcher.greater(TimeIndex)(20L)) shouldEqual Set("3", "4")
+      find(Matcher.between(TimeIndex)(20L, 30L)) shouldEqual Set("2", "3")
+    }
+
+    scenario("Count with bind args") {
+      MessageDao.count(Matcher.in(TimeIndex)(Set(10L, 20L, 30L))) shouldEqual 3
+      MessageDao.count(Matcher.like(TextIndex)("'")) shouldEqual 1
+    }
+
+    scenario("Full text search with prefixes") {
+      def search(q: String) = find(Matcher.search(MessageDao, TextIndex)(q))
+
+      search("und") shouldEqual Set("3")
+      search("score under") shouldEqual Set("3")
+      search("DO") shouldEqual Set("2")
+      search("it's") shouldEqual Set("1")
+      search("") shouldEqual Set()
+    }
+  }
+}
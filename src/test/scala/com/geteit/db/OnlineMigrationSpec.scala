@@ -0,0 +1,52 @@
+package com.geteit.db
+
+import android.database.sqlite.{SQLiteDatabase, SQLiteOpenHelper}
+import org.robolectric.RuntimeEnvironment
+import org.scalatest.concurrent.ScalaFutures
+import org.scalatest.time._
+import org.scalatest.{FeatureSpec, Matchers, RobolectricSuite}
+
+class OnlineMigrationSpec extends FeatureSpec with Matchers with RobolectricSuite with ScalaFutures {
+  import Message.MessageDao
+
+  override implicit val patienceConfig = PatienceConfig(Span(10, Seconds), Span(100, Millis))
+
+  lazy val storage: Storage = new Storage() {
+    override val dbHelper: SQLiteOpenHelper = new SQLiteOpenHelper(RuntimeEnvironment.application, "online-migration-spec", null, 1) with DaoDB {
+      override val daos = Seq(MessageDao)
+      override val migrations: Seq[Migration] = Nil
+    }
+  }
+
+  // records cursor of every processed chunk, fails on chunk starting after given id
+  class TestMigration(failAfter: Option[String] = None) extends OnlineMigration[String, Message]("messages_v2", MessageDao, 2) {
+    @volatile var chunks = Vector.empty[Option[String]]
+
+    override private[db] def migrateChunk(after: Option[String])(implicit db: SQLiteDatabase): Option[String] = {
+      chunks :+= after
+      if (failAfter.isDefined && after == failAfter) throw new IllegalStateException("interrupted")
+      super.migrateChunk(after)
+    }
+  }
+
+  feature("Resume") {
+    scenario("Continue interrupted migration from last saved chunk") {
+      val messages = (1 to 5) map { i => Message(s"m_$i", s"message $i", i.toLong) }
+      storage { implicit db =>
+        MessageDao.insert(messages)
+        OnlineMigration.schedule("messages_v2")
+      }.futureValue
+
+      val interrupted = new TestMigration(failAfter = Some("m_2"))
+      OnlineMigration.resume(storage, Seq(interrupted)).failed.futureValue shouldBe an[IllegalStateException]
+      interrupted.chunks shouldEqual Seq(None, Some("m_2"))
+      storage { OnlineMigration.pending(_) }.futureValue shouldEqual Seq("messages_v2" -> Some("m_2"))
+
+      val resumed = new TestMigration()
+      OnlineMigration.resume(storage, Seq(resumed)).futureValue
+      resumed.chunks shouldEqual Seq(Some("m_2"), Some("m_4"))
+      storage { OnlineMigration.pending(_) }.futureValue shouldEqual Nil
+      storage.read { MessageDao.list(_) }.futureValue.sortBy(_.id) shouldEqual messages
+    }
+  }
+}
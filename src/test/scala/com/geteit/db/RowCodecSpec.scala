@@ -0,0 +1,108 @@
+package com.geteit.db
+
+import java.io.{DataInputStream, DataOutputStream}
+
+import android.database.sqlite.{SQLiteDatabase, SQLiteOpenHelper}
+import com.geteit.cache.CacheEntryData.{CacheEntryCodec, CacheEntryDao}
+import com.geteit.cache.{CacheEntryData, Uid}
+import com.geteit.json.{JsonDecoder, JsonEncoder}
+import org.robolectric.RuntimeEnvironment
+import org.scalatest.{FeatureSpec, Matchers, RobolectricSuite}
+
+import scala.util.Random
+
+class RowCodecSpec extends FeatureSpec with Matchers with RobolectricSuite {
+  import RowCodecSpec._
+  import RowData._
+
+  lazy val dbHelper = new SQLiteOpenHelper(RuntimeEnvironment.application, "row-codec-spec", null, 1) with DaoDB {
+    override val daos = Seq(CacheEntryDao)
+    override val migrations: Seq[Migration] = Nil
+  }
+
+  implicit def db: SQLiteDatabase = dbHelper.getWritableDatabase
+
+  lazy val entries = Seq.tabulate(1000) { i => CacheEntryData(s"http://host/image/$i?size=${Random.nextInt(1000)}", if (i % 2 == 0) Some(Random.nextString(256).getBytes("utf8")) else None) }
+  lazy val messages = Seq.tabulate(1000) { i => Message(Uid().str, Random.nextString(100), System.currentTimeMillis() + i) }
+
+  feature("Binary codec") {
+    scenario("Round trip") {
+      entries foreach { e => CacheEntryCodec.decode(BlobData(CacheEntryCodec.encode(e))) shouldEqual e }
+      messages foreach { m => MessageCodec.decode(BlobData(MessageCodec.encode(m))) shouldEqual m }
+    }
+
+    scenario("Decode json rows") {
+      val encoder = implicitly[JsonEncoder[CacheEntryData]]
+      entries foreach { e => CacheEntryCodec.decode(TextData(encoder(e))) shouldEqual e }
+    }
+
+    scenario("Migrate json rows lazily on write") {
+      val entry = entries.head
+      db.execSQL(s"INSERT OR REPLACE INTO ${CacheEntryDao.table.name} (_id, _data) VALUES (?, ?)", Array[AnyRef](entry.key, implicitly[JsonEncoder[CacheEntryData]].apply(entry)))
+      def dataType = db.compileStatement(s"SELECT typeof(_data) FROM ${CacheEntryDao.table.name} WHERE _id = '${entry.key}'").simpleQueryForString()
+
+      dataType shouldEqual "text"
+      CacheEntryDao.get(entry.key) shouldEqual Some(entry)
+      CacheEntryDao.insert(entry)
+      dataType shouldEqual "blob"
+      CacheEntryDao.get(entry.key) shouldEqual Some(entry)
+    }
+  }
+
+  feature("Parallel decoding") {
+    scenario("Keep rows order") {
+      val encoder = implicitly[JsonEncoder[Message]]
+      val rows = (messages ++ messages ++ messages).map(m => TextData(encoder(m))).toVector
+      val json = RowCodec.json[Message]
+      Dao.decodeParallel(rows)(json.decode) shouldEqual rows.map(json.decode)
+    }
+  }
+
+  feature("Benchmark") {
+    scenario("CacheEntryData") {
+      val (jsonSize, binarySize) = compare("CacheEntryData", entries, CacheEntryCodec)
+      binarySize should be < jsonSize
+    }
+
+    scenario("Message") {
+      compare("Message", messages, MessageCodec)
+    }
+  }
+
+  def compare[A: JsonEncoder : JsonDecoder](name: String, items: Seq[A], codec: BinaryRowCodec[A]): (Long, Long) = {
+    val json = RowCodec.json[A]
+    val encoder = implicitly[JsonEncoder[A]]
+    val jsonRows = items.map(v => TextData(encoder(v)))
+    val binaryRows = items.map(v => BlobData(codec.encode(v)))
+
+    def measure(rows: Seq[RowData], decode: RowData => A) = {
+      (0 until 5) foreach { _ => rows foreach decode } // warm up
+      val start = System.nanoTime()
+      (0 until 10) foreach { _ => rows foreach decode }
+      (System.nanoTime() - start) / 10 / 1000
+    }
+
+    val jsonSize = jsonRows.map(_.str.getBytes("utf8").length.toLong).sum
+    val binarySize = binaryRows.map(_.bytes.length.toLong).sum
+    val jsonTime = measure(jsonRows, json.decode)
+    val binaryTime = measure(binaryRows, codec.decode)
+
+    info(f"$name: ${items.size} rows, json: $jsonSize%d bytes, $jsonTime%d us, binary: $binarySize%d bytes, $binaryTime%d us")
+    (jsonSize, binarySize)
+  }
+}
+
+object RowCodecSpec {
+
+  object MessageCodec extends BinaryRowCodec[Message](1) {
+    import BinaryRowCodec._
+
+    override protected def write(m: Message, out: DataOutputStream): Unit = {
+      writeString(out, m.id)
+      writeString(out, m.text)
+      out.writeLong(m.time)
+    }
+
+    override protected def read(in: DataInputStream): Message = Message(readString(in), readString(in), in.readLong())
+  }
+}
@@ -0,0 +1,17 @@
+package com.geteit.db
+
+import com.geteit.json.Json
+
+@Json
+case class Message(id: String, text: String, time: Long)
+
+object Message {
+
+  implicit object MessageDao extends Dao[String, Message] {
+    val TextIndex = Index[Message, String]("text", _.text)
+    val TimeIndex = Index[Message, Long]("time", _.time)
+
+    override val table = Table("Messages", Seq(TextIndex, TimeIndex), searchIndexes = Seq(TextIndex))
+    override def getId(v: Message) = v.id
+  }
+}